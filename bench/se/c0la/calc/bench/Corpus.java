@@ -0,0 +1,103 @@
+package se.c0la.calc.bench;
+
+/**
+ * The expressions that the benchmarks run over. Besides the samples from
+ * Main and PlotTest, there are generated expressions that are deeply
+ * nested, which stresses the recursion in the parsers and evaluators,
+ * and ones that are wide, with a long flat list of terms.
+ *
+ * Every expression uses at most the variables x and foo.
+ */
+public class Corpus
+{
+	public static final String[] SAMPLES = {
+		// Main
+		"33 * (4477 - 2233 + 10) + ((44 - 32) / (27 + 32))",
+		"2 * 3 * 4 - 5 * 7 + 1",
+		"2^(4+4/2+2)-56*2/2",
+		"2*sin(pi / 4)^2 + 2",
+		"e^ln(7.0)",
+		"2*foo+6.1",
+
+		// PlotTest
+		"2*sin(pi*x)+1",
+		"(x-1)*(x+1)",
+		"4*x*(x-1)*(x+1)",
+		"1/2 * ln((1+sqrt(1-x^2))/(1-sqrt(1-x^2)))-sqrt(1-x^2)+sqrt(x/10000000)",
+		"x^3 - x + 1"
+	};
+
+	private static final int DEPTH = 64;
+	private static final int TERMS = 256;
+
+	/**
+	 * Returns the named corpus, which is one of samples, deep or wide.
+	 */
+	public static String[] get(String name)
+	{
+		if (name.equals("samples")) {
+			return SAMPLES;
+		}
+		else if (name.equals("deep")) {
+			return new String[] { deep(DEPTH), deep(DEPTH / 4) };
+		}
+		else if (name.equals("wide")) {
+			return new String[] { wide(TERMS), wide(TERMS / 4) };
+		}
+
+		throw new IllegalArgumentException("Unknown corpus " + name);
+	}
+
+	/**
+	 * (((((x + 1) * 2) - 3) / 4) + sin(5)) ..., nested depth times.
+	 */
+	public static String deep(int depth)
+	{
+		String[] operators = { " + ", " * ", " - ", " / " };
+
+		StringBuilder expression = new StringBuilder("x");
+		for (int i = 1; i <= depth; i++) {
+			expression.insert(0, '(');
+			expression.append(operators[(i - 1) % operators.length]);
+			if (i % 5 == 0) {
+				expression.append("sin(").append(i).append(')');
+			}
+			else {
+				expression.append(i);
+			}
+			expression.append(')');
+		}
+
+		return expression.toString();
+	}
+
+	/**
+	 * 1*x + 2*x^2 - 3/x + ..., with the given number of terms.
+	 */
+	public static String wide(int terms)
+	{
+		StringBuilder expression = new StringBuilder();
+		for (int i = 1; i <= terms; i++) {
+			if (i > 1) {
+				expression.append(i % 3 == 0 ? " - " : " + ");
+			}
+
+			switch (i % 4) {
+				case 0:
+					expression.append(i).append("*x");
+					break;
+				case 1:
+					expression.append(i).append("*x^2");
+					break;
+				case 2:
+					expression.append(i).append("/x");
+					break;
+				default:
+					expression.append("cos(").append(i).append("*x)");
+					break;
+			}
+		}
+
+		return expression.toString();
+	}
+}
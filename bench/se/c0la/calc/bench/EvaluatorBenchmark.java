@@ -0,0 +1,73 @@
+package se.c0la.calc.bench;
+
+import se.c0la.calc.*;
+
+import java.math.*;
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Evaluates parsed expressions at a precision that is handled with
+ * doubles, at the precision of DECIMAL128 and at a high precision, where
+ * everything goes through BigMath. The same expressions are also run as
+ * Bytecode by a StackMachine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EvaluatorBenchmark
+{
+	@Param({ "samples", "deep", "wide" })
+	public String corpus;
+
+	@Param({ "10", "34", "100" })
+	public int precision;
+
+	private Evaluator evaluator;
+	private List<ASTNode> expressions;
+	private List<StackMachine> machines;
+
+	@Setup
+	public void setup()
+	throws Exception
+	{
+		evaluator = new Evaluator();
+		evaluator.setPrecision(precision);
+		evaluator.addVariable("x", new BigDecimal("0.375"));
+		evaluator.addVariable("foo", new BigDecimal("1.5"));
+
+		Lexer lexer = new Lexer();
+		ExpressionParser parser = new PrecedenceParser();
+		BytecodeCompiler compiler = new BytecodeCompiler();
+		expressions = new ArrayList<ASTNode>();
+		machines = new ArrayList<StackMachine>();
+		for (String source : Corpus.get(corpus)) {
+			ASTNode expression = parser.parse(lexer.tokenize(source));
+			expressions.add(expression);
+			machines.add(new StackMachine(compiler.compile(expression), evaluator));
+		}
+	}
+
+	@Benchmark
+	public void evaluate(Blackhole bh)
+	throws Exception
+	{
+		for (ASTNode expression : expressions) {
+			bh.consume(evaluator.evaluate(expression));
+		}
+	}
+
+	@Benchmark
+	public void stackMachine(Blackhole bh)
+	throws Exception
+	{
+		for (StackMachine machine : machines) {
+			bh.consume(machine.evaluate());
+		}
+	}
+}
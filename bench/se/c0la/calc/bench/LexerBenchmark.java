@@ -0,0 +1,38 @@
+package se.c0la.calc.bench;
+
+import se.c0la.calc.*;
+
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark
+{
+	@Param({ "samples", "deep", "wide" })
+	public String corpus;
+
+	private Lexer lexer;
+	private String[] sources;
+
+	@Setup
+	public void setup()
+	{
+		lexer = new Lexer();
+		sources = Corpus.get(corpus);
+	}
+
+	@Benchmark
+	public void tokenize(Blackhole bh)
+	throws Exception
+	{
+		for (String source : sources) {
+			bh.consume(lexer.tokenize(source));
+		}
+	}
+}
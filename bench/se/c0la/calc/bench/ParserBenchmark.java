@@ -0,0 +1,57 @@
+package se.c0la.calc.bench;
+
+import se.c0la.calc.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.*;
+
+/**
+ * Parses lexemes that have been produced ahead of time, so that the
+ * lexer isn't part of the measurement.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark
+{
+	@Param({ "samples", "deep", "wide" })
+	public String corpus;
+
+	@Param({ "legacy", "precedence" })
+	public String parser;
+
+	private ExpressionParser expressionParser;
+	private List<List<Lexeme>> lexemes;
+
+	@Setup
+	public void setup()
+	throws Exception
+	{
+		if (parser.equals("legacy")) {
+			expressionParser = new Parser();
+		}
+		else {
+			expressionParser = new PrecedenceParser();
+		}
+
+		Lexer lexer = new Lexer();
+		lexemes = new ArrayList<List<Lexeme>>();
+		for (String source : Corpus.get(corpus)) {
+			lexemes.add(lexer.tokenize(source));
+		}
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh)
+	throws Exception
+	{
+		for (List<Lexeme> expression : lexemes) {
+			bh.consume(expressionParser.parse(expression));
+		}
+	}
+}
@@ -0,0 +1,117 @@
+package se.c0la.calc.bench;
+
+import se.c0la.calc.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Plots the function and the equation from PlotTest, with the same
+ * image sizes and bounds, and a dashboard with several curves in one
+ * image. A single plot takes milliseconds, so the iterations are longer
+ * than for the other benchmarks.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PlotterBenchmark
+{
+	@State(Scope.Benchmark)
+	public static class FunctionPlot
+	{
+		@Param({ "uniform", "adaptive" })
+		public String sampling;
+
+		private FunctionPlotter plotter;
+		private ASTNode function;
+
+		@Setup
+		public void setup()
+		throws Exception
+		{
+			plotter = new FunctionPlotter(new DoubleEvaluator());
+			plotter.setImageSize(600, 800);
+			plotter.setBoundsX(-0.1, 1.0);
+			plotter.setBoundsY(-0.5, 7.0);
+			plotter.setScale(0.1, 1.0);
+			if (sampling.equals("adaptive")) {
+				plotter.setAdaptiveSampling(0.25, 4000);
+			}
+
+			function = new PrecedenceParser().parse(new Lexer().tokenize(
+				"1/2 * ln((1+sqrt(1-x^2))/(1-sqrt(1-x^2)))-sqrt(1-x^2)+sqrt(x/10000000)"));
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class ImplicitPlot
+	{
+		private FunctionPlotter plotter;
+		private ASTNode equation;
+
+		@Setup
+		public void setup()
+		throws Exception
+		{
+			plotter = new FunctionPlotter(new DoubleEvaluator());
+			plotter.setImageSize(800, 800);
+			plotter.setBoundsX(-3.0, 3.0);
+			plotter.setBoundsY(-3.0, 3.0);
+			plotter.setScale(0.5, 0.5);
+
+			// y^2 = x^3 - x + 1, rearranged the way plotImplicit() does it
+			// when given the lexemes, so that only the plotting is measured.
+			equation = new PrecedenceParser().parse(new Lexer().tokenize("(y^2) - (x^3 - x + 1)"));
+		}
+	}
+
+	@State(Scope.Benchmark)
+	public static class MultiPlot
+	{
+		private FunctionPlotter plotter;
+		private List<ASTNode> functions;
+
+		@Setup
+		public void setup()
+		throws Exception
+		{
+			plotter = new FunctionPlotter(new DoubleEvaluator());
+			plotter.setImageSize(800, 500);
+			plotter.setBoundsX(-4.0, 4.0);
+			plotter.setBoundsY(-3.0, 3.0);
+			plotter.setScale(1.0, 1.0);
+
+			Lexer lexer = new Lexer();
+			ExpressionParser parser = new PrecedenceParser();
+			functions = new ArrayList<ASTNode>();
+			for (String source : new String[] { "sin(x)", "cos(x)", "x^2/4 - 2", "tan(x)", "ln(x)",
+				"1/x", "2*atan(x)", "sqrt(4-x^2)", "-sqrt(4-x^2)", "2*e^(-x^2)" }) {
+				functions.add(parser.parse(lexer.tokenize(source)));
+			}
+		}
+	}
+
+	@Benchmark
+	public Object plot(FunctionPlot state)
+	throws Exception
+	{
+		return state.plotter.plot(state.function, "x");
+	}
+
+	@Benchmark
+	public Object plotImplicit(ImplicitPlot state)
+	throws Exception
+	{
+		return state.plotter.plotImplicit(state.equation, "x", "y");
+	}
+
+	@Benchmark
+	public Object plotMultiple(MultiPlot state)
+	throws Exception
+	{
+		return state.plotter.plot(state.functions, "x");
+	}
+}
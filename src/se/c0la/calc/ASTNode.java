@@ -7,12 +7,19 @@ public class ASTNode
 	private Lexeme lexeme;
 	private ASTNode left;
 	private ASTNode right;
+	private ASTNode[] arguments;
+
+	/**
+	 * Nodes that are shared by several parents in an expression DAG
+	 * have a slot, where evaluators keep the value of the node for the
+	 * duration of an evaluation. The root holds the number of slots.
+	 */
+	private int slot = -1;
+	private int slotCount = 0;
 	
 	public ASTNode(Lexeme lexeme)
 	{
-		this.lexeme = lexeme;
-		this.left = null;
-		this.right = null;
+		this(lexeme, (ASTNode)null, (ASTNode)null);
 	}
 
 	public ASTNode(Lexeme lexeme, ASTNode left, ASTNode right)
@@ -20,16 +27,49 @@ public class ASTNode
 		this.lexeme = lexeme;
 		this.left = left;
 		this.right = right;
+
+		// The argument of a function with a single argument is
+		// kept to the left.
+		if (lexeme != null && lexeme.getType() == TokenType.FUNCTION) {
+			if (left != null) {
+				this.arguments = new ASTNode[] { left };
+			} else {
+				this.arguments = new ASTNode[0];
+			}
+		}
 	}
 	
 	public ASTNode(Lexeme lexeme, Lexeme left, Lexeme right)
+	{
+		this(lexeme, new ASTNode(left), new ASTNode(right));
+	}
+
+	/**
+	 * Creates a call to a function with any number of arguments. The
+	 * first argument is also available as the left child, so code that
+	 * only deals with single argument functions keeps working.
+	 */
+	public ASTNode(Lexeme lexeme, ASTNode[] arguments)
 	{
 		this.lexeme = lexeme;
-		this.left = new ASTNode(left);
-		this.right = new ASTNode(right);
+		this.left = arguments.length > 0 ? arguments[0] : null;
+		this.right = null;
+		this.arguments = arguments;
 	}
 
 	public Lexeme getLexeme() { return lexeme; }
 	public ASTNode getLeft() { return left; }
 	public ASTNode getRight() { return right; }
+
+	/**
+	 * The arguments of a FUNCTION node, or null for any other node.
+	 * The array is shared and must not be modified.
+	 */
+	public ASTNode[] getArguments() { return arguments; }
+
+	public int getSlot() { return slot; }
+	public int getSlotCount() { return slotCount; }
+
+	void setSlot(int slot) { this.slot = slot; }
+	void setSlotCount(int slotCount) { this.slotCount = slotCount; }
 }
@@ -0,0 +1,410 @@
+package se.c0la.calc;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.math.*;
+
+/**
+ * Evaluates a stream of expressions, one per line, and writes one line of
+ * output for each line of input, in the same order.
+ *
+ * Lines go through three stages. They're lexed and parsed by a pool of
+ * worker threads, after which a single dispatcher takes them in input
+ * order. Expressions are handed back to the pool to be evaluated by a
+ * frozen copy of the evaluator, while assignments are evaluated by the
+ * dispatcher itself, so that each assignment sees the variables assigned
+ * on the lines before it and every line after it sees its value. Finally
+ * a writer waits for the results in input order. The queues between the
+ * stages are bounded, so a large input is never read far ahead of the
+ * output.
+ *
+ * A line that can't be parsed or evaluated gives a line of output
+ * starting with its line number and the error, and an empty line of input
+ * gives an empty line of output.
+ */
+public class BatchEvaluator
+{
+	private static final int DEFAULT_QUEUE_SIZE = 1024;
+
+	/**
+	 * A line of input on its way through the pipeline. The result is
+	 * either known when the line is dispatched, or still being computed
+	 * by the pool.
+	 */
+	private static class Job
+	{
+		private int number;
+		private String line;
+		private Future<Statement> statement;
+		private String result;
+		private Future<String> pending;
+		private volatile boolean failed;
+
+		public Job(int number, String line)
+		{
+			this.number = number;
+			this.line = line;
+		}
+	}
+
+	/**
+	 * A parsed line, which is an expression, an assignment of an
+	 * expression to a variable, an error or nothing at all.
+	 */
+	private static class Statement
+	{
+		private String variable;
+		private ASTNode expression;
+		private String error;
+	}
+
+	private static final Job END = new Job(-1, null);
+
+	private Lexer lexer;
+	private ExpressionCache cache;
+	private Evaluator evaluator;
+	private int threads;
+	private int queueSize;
+
+	private IOException writeError;
+	private volatile Throwable stageError;
+	private int failures;
+
+	public BatchEvaluator(Lexer lexer, ExpressionCache cache, Evaluator evaluator)
+	{
+		this(lexer, cache, evaluator, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_SIZE);
+	}
+
+	/**
+	 * The evaluator is updated by the assignments in the input, just as
+	 * it would have been if the lines had been evaluated one at a time.
+	 */
+	public BatchEvaluator(Lexer lexer, ExpressionCache cache, Evaluator evaluator,
+		int threads, int queueSize)
+	{
+		if (threads < 1 || queueSize < 1) {
+			throw new IllegalArgumentException("Invalid thread count or queue size");
+		}
+
+		this.lexer = lexer;
+		this.cache = cache;
+		this.evaluator = evaluator;
+		this.threads = threads;
+		this.queueSize = queueSize;
+	}
+
+	/**
+	 * Splits "name = expression" into the name and the expression. If the
+	 * part before the first equal sign isn't a single variable, the line
+	 * isn't an assignment, and the name is null.
+	 */
+	public static String[] splitAssignment(Lexer lexer, String line)
+	throws UnknownTokenException
+	{
+		int equals = line.indexOf('=');
+		if (equals != -1) {
+			List<Lexeme> target = lexer.tokenize(line.substring(0, equals));
+			if (target.size() == 1 && target.get(0).getType() == TokenType.VARIABLE) {
+				return new String[] { target.get(0).getValue(), line.substring(equals + 1) };
+			}
+		}
+
+		return new String[] { null, line };
+	}
+
+	/**
+	 * Evaluates every line of in, and returns the number of lines that
+	 * failed. The output isn't flushed.
+	 *
+	 * Should the dispatcher or the writer itself fail, the pool and the
+	 * other stage are stopped, and an IllegalStateException is thrown with
+	 * the error as its cause.
+	 */
+	public synchronized int run(BufferedReader in, final Writer out)
+	throws IOException, InterruptedException
+	{
+		final ExecutorService pool = Executors.newFixedThreadPool(threads);
+		final BlockingQueue<Job> parsed = new ArrayBlockingQueue<Job>(queueSize);
+		final BlockingQueue<Job> evaluated = new ArrayBlockingQueue<Job>(queueSize);
+		final Thread caller = Thread.currentThread();
+		final Thread[] stages = new Thread[2];
+
+		writeError = null;
+		stageError = null;
+		failures = 0;
+
+		Thread dispatcher = new Thread("batch-dispatcher") {
+			public void run()
+			{
+				try {
+					dispatch(pool, parsed, evaluated);
+				}
+				catch (InterruptedException e) {
+					// The batch was abandoned.
+				}
+				catch (Throwable e) {
+					abandon(e, pool, caller, stages);
+				}
+			}
+		};
+
+		Thread writer = new Thread("batch-writer") {
+			public void run()
+			{
+				try {
+					write(evaluated, out);
+				}
+				catch (InterruptedException e) {
+					// The batch was abandoned.
+				}
+				catch (Throwable e) {
+					abandon(e, pool, caller, stages);
+				}
+			}
+		};
+
+		stages[0] = dispatcher;
+		stages[1] = writer;
+		dispatcher.start();
+		writer.start();
+
+		try {
+			int number = 0;
+			String line;
+			while ((line = in.readLine()) != null) {
+				number++;
+
+				final Job job = new Job(number, line);
+				job.statement = pool.submit(new Callable<Statement>() {
+					public Statement call()
+					{
+						return parse(job.line);
+					}
+				});
+
+				parsed.put(job);
+			}
+
+			parsed.put(END);
+
+			dispatcher.join();
+			writer.join();
+		}
+		catch (InterruptedException e) {
+			if (stageError == null) {
+				throw e;
+			}
+		}
+		catch (RejectedExecutionException e) {
+			if (stageError == null) {
+				throw e;
+			}
+		}
+		finally {
+			dispatcher.interrupt();
+			writer.interrupt();
+			pool.shutdownNow();
+		}
+
+		if (stageError != null) {
+			// Once both stages are gone, there's no one left to interrupt
+			// this thread, and the interrupt from abandon() can be cleared.
+			joinStage(dispatcher);
+			joinStage(writer);
+			Thread.interrupted();
+
+			throw new IllegalStateException("Batch evaluation failed", stageError);
+		}
+
+		if (writeError != null) {
+			throw writeError;
+		}
+
+		return failures;
+	}
+
+	/**
+	 * Called by a stage that fails. The pool is stopped, and the other
+	 * stage and the thread reading the input are interrupted, since no one
+	 * would take what they're waiting to hand on.
+	 */
+	private void abandon(Throwable error, ExecutorService pool, Thread caller, Thread[] stages)
+	{
+		if (stageError == null) {
+			stageError = error;
+		}
+
+		pool.shutdownNow();
+		for (Thread stage : stages) {
+			if (stage != Thread.currentThread()) {
+				stage.interrupt();
+			}
+		}
+		caller.interrupt();
+	}
+
+	private static void joinStage(Thread stage)
+	{
+		while (stage.isAlive()) {
+			try {
+				stage.join();
+			}
+			catch (InterruptedException e) {
+				// Keep waiting, the stage has been told to stop.
+			}
+		}
+	}
+
+	private Statement parse(String line)
+	{
+		Statement statement = new Statement();
+		try {
+			String[] assignment = splitAssignment(lexer, line);
+			if (assignment[1].trim().length() == 0 && assignment[0] == null) {
+				return statement;
+			}
+
+			statement.variable = assignment[0];
+			statement.expression = cache.parse(assignment[1]);
+		}
+		catch (UnknownTokenException e) {
+			statement.error = "Unknown token: " + e.getMessage();
+		}
+		catch (ParseErrorException e) {
+			statement.error = "Parse error: " + e.getMessage();
+		}
+
+		return statement;
+	}
+
+	/**
+	 * Takes the parsed lines in input order. A new frozen copy of the
+	 * evaluator is made after every assignment, so the expressions that
+	 * are being evaluated by the pool each see the variables as they were
+	 * on their own line.
+	 */
+	private void dispatch(ExecutorService pool, BlockingQueue<Job> parsed, BlockingQueue<Job> evaluated)
+	throws InterruptedException
+	{
+		boolean ended = false;
+		try {
+			dispatchJobs(pool, parsed, evaluated);
+			evaluated.put(END);
+			ended = true;
+		}
+		finally {
+			// The writer mustn't wait for jobs that will never come. If the
+			// queue is full, the writer is stopped by abandon() instead.
+			if (!ended) {
+				evaluated.offer(END);
+			}
+		}
+	}
+
+	private void dispatchJobs(ExecutorService pool, BlockingQueue<Job> parsed, BlockingQueue<Job> evaluated)
+	throws InterruptedException
+	{
+		Evaluator snapshot = evaluator.freeze();
+		while (true) {
+			final Job job = parsed.take();
+			if (job == END) {
+				return;
+			}
+
+			Statement parsedStatement;
+			try {
+				parsedStatement = job.statement.get();
+			}
+			catch (ExecutionException e) {
+				// Anything that parse() doesn't catch, such as running out
+				// of stack on a deeply nested line, only fails that line.
+				parsedStatement = new Statement();
+				parsedStatement.error = "Parse error: " + e.getCause();
+			}
+
+			final Statement statement = parsedStatement;
+			if (statement.error != null) {
+				job.result = fail(job, statement.error);
+			}
+			else if (statement.expression == null) {
+				job.result = "";
+			}
+			else if (statement.variable != null) {
+				try {
+					BigDecimal value = evaluator.evaluate(statement.expression);
+					evaluator.addVariable(statement.variable, value);
+					snapshot = evaluator.freeze();
+
+					job.result = value.toString();
+				}
+				catch (EvaluationException e) {
+					job.result = fail(job, "Evaluation failed: " + e.getMessage());
+				}
+			}
+			else {
+				final Evaluator frozen = snapshot;
+				job.pending = pool.submit(new Callable<String>() {
+					public String call()
+					{
+						try {
+							return frozen.evaluate(statement.expression).toString();
+						}
+						catch (EvaluationException e) {
+							return fail(job, "Evaluation failed: " + e.getMessage());
+						}
+					}
+				});
+			}
+
+			evaluated.put(job);
+		}
+	}
+
+	/**
+	 * Writes the results in input order. If writing fails, the remaining
+	 * results are still taken, so that the other stages aren't blocked.
+	 */
+	private void write(BlockingQueue<Job> evaluated, Writer out)
+	throws InterruptedException
+	{
+		while (true) {
+			Job job = evaluated.take();
+			if (job == END) {
+				return;
+			}
+
+			String result = job.result;
+			if (job.pending != null) {
+				try {
+					result = job.pending.get();
+				}
+				catch (ExecutionException e) {
+					result = fail(job, "Evaluation failed: " + e.getCause());
+				}
+			}
+
+			if (job.failed) {
+				failures++;
+			}
+
+			if (writeError != null) {
+				continue;
+			}
+
+			try {
+				out.write(result);
+				out.write('\n');
+			}
+			catch (IOException e) {
+				writeError = e;
+			}
+		}
+	}
+
+	private static String fail(Job job, String message)
+	{
+		job.failed = true;
+		return "line " + job.number + ": " + message;
+	}
+}
@@ -0,0 +1,579 @@
+package se.c0la.calc;
+
+import java.math.*;
+import java.util.concurrent.*;
+
+/**
+ * Elementary functions computed with BigDecimal to any precision, rather
+ * than through doubles. Every function takes the MathContext to round the
+ * result to, and works with a few guard digits internally.
+ *
+ * The arguments are first reduced to a small range, where a Taylor series
+ * or Newton's method converges quickly: multiples of pi/2 are removed for
+ * sin and cos, multiples of ln 2 for exp, and powers of ten and two for ln.
+ * The constants that are needed for this are computed once per precision
+ * and kept in a cache which is shared by all threads.
+ *
+ * The series themselves are summed using binary fixed point numbers, held
+ * in a BigInteger, since BigDecimal spends most of its time rounding and
+ * aligning scales when adding up many small terms.
+ *
+ * None of the functions accept a MathContext with unlimited precision.
+ * Arguments outside the domain of a function cause an ArithmeticException.
+ */
+public final class BigMath
+{
+	/**
+	 * Results with at most this many digits can be computed using doubles
+	 * instead, which is much faster and still correct after rounding.
+	 */
+	public static final int DOUBLE_DIGITS = 15;
+
+	/**
+	 * Extra digits used for intermediate results, which absorb the
+	 * rounding errors made along the way.
+	 */
+	private static final int GUARD_DIGITS = 10;
+
+	private static final BigDecimal TWO = BigDecimal.valueOf(2);
+	private static final BigDecimal FOUR = BigDecimal.valueOf(4);
+	private static final BigDecimal HALF = new BigDecimal("0.5");
+	private static final BigDecimal THREE_HALVES = new BigDecimal("1.5");
+	private static final BigDecimal TENTH = new BigDecimal("0.1");
+
+	/**
+	 * The constants, by the precision they were computed with. Two threads
+	 * may compute the same constant at the same time, in which case both
+	 * get the same value and it doesn't matter which one is kept.
+	 */
+	private static final ConcurrentMap<Integer, BigDecimal> PI = new ConcurrentHashMap<Integer, BigDecimal>();
+	private static final ConcurrentMap<Integer, BigDecimal> E = new ConcurrentHashMap<Integer, BigDecimal>();
+	private static final ConcurrentMap<Integer, BigDecimal> LN2 = new ConcurrentHashMap<Integer, BigDecimal>();
+	private static final ConcurrentMap<Integer, BigDecimal> LN10 = new ConcurrentHashMap<Integer, BigDecimal>();
+
+	private BigMath()
+	{
+	}
+
+	/**
+	 * Returns true if results rounded to mc can be computed using doubles.
+	 * This includes an unlimited precision, which can't be computed in
+	 * any other way.
+	 */
+	public static boolean isDoublePrecision(MathContext mc)
+	{
+		return mc.getPrecision() <= DOUBLE_DIGITS;
+	}
+
+	public static BigDecimal pi(MathContext mc)
+	{
+		checkPrecision(mc);
+
+		BigDecimal pi = PI.get(mc.getPrecision());
+		if (pi == null) {
+			// Machin's formula, pi = 16 acot(5) - 4 acot(239).
+			MathContext work = widen(mc, 1);
+			pi = FOUR.multiply(acot(5, work)).subtract(acot(239, work)).multiply(FOUR, work);
+			PI.put(mc.getPrecision(), pi);
+		}
+
+		return pi.round(mc);
+	}
+
+	public static BigDecimal e(MathContext mc)
+	{
+		checkPrecision(mc);
+
+		BigDecimal e = E.get(mc.getPrecision());
+		if (e == null) {
+			e = exp(BigDecimal.ONE, widen(mc, 0));
+			E.put(mc.getPrecision(), e);
+		}
+
+		return e.round(mc);
+	}
+
+	public static BigDecimal ln2(MathContext mc)
+	{
+		checkPrecision(mc);
+
+		BigDecimal ln2 = LN2.get(mc.getPrecision());
+		if (ln2 == null) {
+			ln2 = lnSeries(TWO, widen(mc, 0));
+			LN2.put(mc.getPrecision(), ln2);
+		}
+
+		return ln2.round(mc);
+	}
+
+	public static BigDecimal ln10(MathContext mc)
+	{
+		checkPrecision(mc);
+
+		BigDecimal ln10 = LN10.get(mc.getPrecision());
+		if (ln10 == null) {
+			// ln 10 = 3 ln 2 + ln 1.25
+			MathContext work = widen(mc, 1);
+			ln10 = ln2(work).multiply(BigDecimal.valueOf(3)).add(lnSeries(new BigDecimal("1.25"), work), work);
+			LN10.put(mc.getPrecision(), ln10);
+		}
+
+		return ln10.round(mc);
+	}
+
+	public static BigDecimal exp(BigDecimal x, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		if (x.signum() == 0) {
+			return BigDecimal.ONE;
+		}
+
+		if (x.signum() < 0) {
+			return BigDecimal.ONE.divide(exp(x.negate(), widen(mc, 0)), mc);
+		}
+
+		// The result has more digits than the exponent of a BigDecimal allows.
+		if (x.compareTo(BigDecimal.valueOf(Integer.MAX_VALUE)) > 0) {
+			throw new ArithmeticException("Overflow");
+		}
+
+		// x = k ln 2 + r, with 0 <= r < ln 2, so that exp(x) = 2^k exp(r).
+		// The error in ln 2 is multiplied by k, which needs as many extra
+		// digits as x has integer digits.
+		MathContext work = widen(mc, integerDigits(x) + 1);
+		BigDecimal ln2 = ln2(work);
+		int k = x.divide(ln2, work).setScale(0, RoundingMode.FLOOR).intValue();
+		BigDecimal r = x.subtract(ln2.multiply(BigDecimal.valueOf(k)), work);
+
+		// Dividing r by 256 makes the series converge a lot faster, and
+		// squaring the result eight times makes up for it.
+		int bits = fractionBits(work, BigDecimal.ONE);
+		BigInteger rf = toFixed(r, bits).shiftRight(8);
+		BigInteger term = BigInteger.ONE.shiftLeft(bits);
+		BigInteger sum = term;
+		for (int n = 1; term.signum() != 0; n++) {
+			term = multiply(term, rf, bits).divide(BigInteger.valueOf(n));
+			sum = sum.add(term);
+		}
+
+		for (int i = 0; i < 8; i++) {
+			sum = multiply(sum, sum, bits);
+		}
+
+		return fromFixed(sum, bits, work).multiply(TWO.pow(k, work), mc);
+	}
+
+	public static BigDecimal ln(BigDecimal x, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		if (x.signum() <= 0) {
+			throw new ArithmeticException("Logarithm of a non-positive number");
+		}
+
+		// Close to 1 the series is used as it is, since reducing x would
+		// cancel out most of the digits of a small result.
+		if (x.compareTo(HALF) >= 0 && x.compareTo(TWO) <= 0) {
+			return lnSeries(x, widen(mc, 0)).round(mc);
+		}
+
+		// x = m 2^j 10^k, with 0.75 <= m < 1.5
+		int k = x.precision() - x.scale() - 1;
+		BigDecimal m = x.movePointLeft(k);
+		int j = 0;
+		while (m.compareTo(THREE_HALVES) >= 0) {
+			m = m.divide(TWO);
+			j++;
+		}
+
+		MathContext work = widen(mc, digits(k) + 1);
+		BigDecimal result = lnSeries(m, work);
+		if (j != 0) {
+			result = result.add(ln2(work).multiply(BigDecimal.valueOf(j)), work);
+		}
+		if (k != 0) {
+			result = result.add(ln10(work).multiply(BigDecimal.valueOf(k)), work);
+		}
+
+		return result.round(mc);
+	}
+
+	public static BigDecimal log10(BigDecimal x, MathContext mc)
+	{
+		MathContext work = widen(mc, 0);
+		return ln(x, work).divide(ln10(work), mc);
+	}
+
+	/**
+	 * Computes ln x as 2 atanh((x - 1) / (x + 1)), which converges quickly
+	 * for x close to 1.
+	 */
+	private static BigDecimal lnSeries(BigDecimal x, MathContext mc)
+	{
+		BigDecimal z = x.subtract(BigDecimal.ONE).divide(x.add(BigDecimal.ONE), mc);
+		if (z.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		return fromFixed(oddSeries(z, false, mc).shiftLeft(1), fractionBits(mc, z), mc);
+	}
+
+	public static BigDecimal sqrt(BigDecimal x, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		if (x.signum() < 0) {
+			throw new ArithmeticException("Square root of a negative number");
+		}
+		if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		// x = m 10^2k, with 1 <= m < 100, so that m fits in a double.
+		int exponent = x.precision() - x.scale() - 1;
+		int k = (exponent < 0 ? exponent - 1 : exponent) / 2;
+		BigDecimal m = x.movePointLeft(2 * k);
+
+		// Newton's method doubles the number of correct digits on every
+		// step, so the precision is only raised as far as it's useful.
+		BigDecimal y = new BigDecimal(Math.sqrt(m.doubleValue()));
+		int precision = DOUBLE_DIGITS;
+		int target = mc.getPrecision() + GUARD_DIGITS;
+		while (precision < target) {
+			precision = Math.min(2 * precision, target);
+			MathContext step = new MathContext(precision + 2);
+			y = y.add(m.divide(y, step)).multiply(HALF, step);
+		}
+
+		return y.movePointRight(k).round(mc);
+	}
+
+	public static BigDecimal sin(BigDecimal x, MathContext mc)
+	{
+		return sinOrCos(x, mc, 0);
+	}
+
+	public static BigDecimal cos(BigDecimal x, MathContext mc)
+	{
+		// cos x = sin(x + pi/2)
+		return sinOrCos(x, mc, 1);
+	}
+
+	public static BigDecimal tan(BigDecimal x, MathContext mc)
+	{
+		MathContext work = widen(mc, 0);
+		return sin(x, work).divide(cos(x, work), mc);
+	}
+
+	/**
+	 * Computes sin(x + shift pi/2), by reducing x to x = n pi/2 + r with
+	 * |r| <= pi/4. Depending on the quadrant, the result is plus or minus
+	 * either sin r or cos r.
+	 */
+	private static BigDecimal sinOrCos(BigDecimal x, MathContext mc, int shift)
+	{
+		checkPrecision(mc);
+
+		// The error in pi is multiplied by n, which needs as many extra
+		// digits as x has integer digits.
+		MathContext work = widen(mc, integerDigits(x));
+		BigDecimal halfPi = pi(work).divide(TWO, work);
+		BigInteger n = x.divide(halfPi, work).setScale(0, RoundingMode.HALF_EVEN).toBigInteger();
+		BigDecimal r = x.subtract(halfPi.multiply(new BigDecimal(n)), work);
+
+		int quadrant = n.add(BigInteger.valueOf(shift)).mod(BigInteger.valueOf(4)).intValue();
+		switch (quadrant) {
+			case 0:
+				return sinSeries(r, work).round(mc);
+			case 1:
+				return cosSeries(r, work).round(mc);
+			case 2:
+				return sinSeries(r, work).negate().round(mc);
+			default:
+				return cosSeries(r, work).negate().round(mc);
+		}
+	}
+
+	private static BigDecimal sinSeries(BigDecimal x, MathContext mc)
+	{
+		if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		int bits = fractionBits(mc, x);
+		BigInteger term = toFixed(x, bits);
+		BigInteger x2 = multiply(term, term, bits);
+		BigInteger sum = term;
+		for (long n = 2; term.signum() != 0; n += 2) {
+			term = multiply(term, x2, bits).divide(BigInteger.valueOf(-n * (n + 1)));
+			sum = sum.add(term);
+		}
+
+		return fromFixed(sum, bits, mc);
+	}
+
+	private static BigDecimal cosSeries(BigDecimal x, MathContext mc)
+	{
+		int bits = fractionBits(mc, BigDecimal.ONE);
+		BigInteger xf = toFixed(x, bits);
+		BigInteger x2 = multiply(xf, xf, bits);
+		BigInteger term = BigInteger.ONE.shiftLeft(bits);
+		BigInteger sum = term;
+		for (long n = 1; term.signum() != 0; n += 2) {
+			term = multiply(term, x2, bits).divide(BigInteger.valueOf(-n * (n + 1)));
+			sum = sum.add(term);
+		}
+
+		return fromFixed(sum, bits, mc);
+	}
+
+	public static BigDecimal atan(BigDecimal x, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		// atan x = pi/2 - atan(1/x) for x > 0, and the series is only
+		// used for arguments of at most one.
+		MathContext work = widen(mc, 0);
+		if (x.abs().compareTo(BigDecimal.ONE) > 0) {
+			BigDecimal reduced = atanSeries(BigDecimal.ONE.divide(x.abs(), work), work);
+			BigDecimal result = pi(work).divide(TWO, work).subtract(reduced, work);
+			return (x.signum() < 0 ? result.negate() : result).round(mc);
+		}
+
+		return atanSeries(x, work).round(mc);
+	}
+
+	/**
+	 * Computes atan x for |x| <= 1. The argument is first made smaller
+	 * using atan x = 2 atan(x / (1 + sqrt(1 + x^2))), since the series
+	 * converges slowly close to one.
+	 */
+	private static BigDecimal atanSeries(BigDecimal x, MathContext mc)
+	{
+		int halvings = 0;
+		while (x.abs().compareTo(TENTH) > 0) {
+			BigDecimal root = sqrt(BigDecimal.ONE.add(x.multiply(x, mc)), mc);
+			x = x.divide(BigDecimal.ONE.add(root), mc);
+			halvings++;
+		}
+
+		if (x.signum() == 0) {
+			return BigDecimal.ZERO;
+		}
+
+		BigInteger sum = oddSeries(x, true, mc).shiftLeft(halvings);
+		return fromFixed(sum, fractionBits(mc, x), mc);
+	}
+
+	public static BigDecimal asin(BigDecimal x, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		int cmp = x.abs().compareTo(BigDecimal.ONE);
+		if (cmp > 0) {
+			throw new ArithmeticException("Argument of asin is out of range");
+		}
+
+		MathContext work = widen(mc, 0);
+		if (cmp == 0) {
+			BigDecimal halfPi = pi(work).divide(TWO, mc);
+			return x.signum() < 0 ? halfPi.negate() : halfPi;
+		}
+
+		// asin x = atan(x / sqrt(1 - x^2)), where 1 - x^2 is computed
+		// exactly since it cancels out when x is close to one.
+		BigDecimal root = sqrt(BigDecimal.ONE.subtract(x.multiply(x)), work);
+		return atan(x.divide(root, work), mc);
+	}
+
+	public static BigDecimal acos(BigDecimal x, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		if (x.abs().compareTo(BigDecimal.ONE) > 0) {
+			throw new ArithmeticException("Argument of acos is out of range");
+		}
+
+		if (x.compareTo(BigDecimal.ONE.negate()) == 0) {
+			return pi(mc);
+		}
+
+		// acos x = 2 atan(sqrt((1 - x) / (1 + x))), which unlike
+		// pi/2 - asin x keeps its precision when x is close to one.
+		MathContext work = widen(mc, 0);
+		BigDecimal ratio = BigDecimal.ONE.subtract(x).divide(BigDecimal.ONE.add(x), work);
+		return atan(sqrt(ratio, work), work).multiply(TWO, mc);
+	}
+
+	public static BigDecimal atan2(BigDecimal y, BigDecimal x, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		MathContext work = widen(mc, 0);
+		if (x.signum() == 0) {
+			if (y.signum() == 0) {
+				return BigDecimal.ZERO;
+			}
+
+			BigDecimal halfPi = pi(work).divide(TWO, mc);
+			return y.signum() < 0 ? halfPi.negate() : halfPi;
+		}
+
+		BigDecimal angle = atan(y.divide(x, work), work);
+		if (x.signum() < 0) {
+			angle = y.signum() < 0 ? angle.subtract(pi(work), work) : angle.add(pi(work), work);
+		}
+
+		return angle.round(mc);
+	}
+
+	public static BigDecimal hypot(BigDecimal x, BigDecimal y, MathContext mc)
+	{
+		return sqrt(x.multiply(x).add(y.multiply(y)), mc);
+	}
+
+	/**
+	 * Integer exponents are computed by repeated squaring, which also
+	 * works for negative bases. Other exponents use exp(y ln x).
+	 */
+	public static BigDecimal pow(BigDecimal x, BigDecimal y, MathContext mc)
+	{
+		checkPrecision(mc);
+
+		if (y.signum() == 0) {
+			return BigDecimal.ONE;
+		}
+
+		if (isInteger(y) && y.abs().compareTo(BigDecimal.valueOf(999999999)) <= 0) {
+			return x.pow(y.intValue(), widen(mc, 0)).round(mc);
+		}
+
+		if (x.signum() == 0) {
+			if (y.signum() > 0) {
+				return BigDecimal.ZERO;
+			}
+			throw new ArithmeticException("Division by zero");
+		}
+
+		if (x.signum() < 0) {
+			throw new ArithmeticException("Negative base with a fractional exponent");
+		}
+
+		// The error in ln x is multiplied by y, and then becomes a relative
+		// error of the result, so a large y needs a few extra digits.
+		BigDecimal lnx = ln(x, widen(mc, integerDigits(y) + 4));
+		return exp(y.multiply(lnx), mc);
+	}
+
+	/**
+	 * Computes acot n = atan(1/n) for an integer n > 1.
+	 */
+	private static BigDecimal acot(int n, MathContext mc)
+	{
+		int bits = fractionBits(mc, BigDecimal.ONE);
+		BigInteger n2 = BigInteger.valueOf((long)n * n);
+		BigInteger power = BigInteger.ONE.shiftLeft(bits).divide(BigInteger.valueOf(n));
+		BigInteger sum = power;
+		for (long k = 3; power.signum() != 0; k += 2) {
+			power = power.divide(n2).negate();
+			sum = sum.add(power.divide(BigInteger.valueOf(k)));
+		}
+
+		return fromFixed(sum, bits, mc);
+	}
+
+	/**
+	 * Sums x + x^3/3 + x^5/5 + ..., which is atanh x, or atan x if the
+	 * signs alternate, as a fixed point number with fractionBits(mc, x)
+	 * fraction bits.
+	 */
+	private static BigInteger oddSeries(BigDecimal x, boolean alternating, MathContext mc)
+	{
+		int bits = fractionBits(mc, x);
+		BigInteger power = toFixed(x, bits);
+		BigInteger x2 = multiply(power, power, bits);
+		if (alternating) {
+			x2 = x2.negate();
+		}
+
+		BigInteger sum = power;
+		for (long n = 3; power.signum() != 0; n += 2) {
+			power = multiply(power, x2, bits);
+			sum = sum.add(power.divide(BigInteger.valueOf(n)));
+		}
+
+		return sum;
+	}
+
+	/**
+	 * The number of fraction bits needed for a fixed point result with
+	 * the precision of mc, when the result is about as large as x. Results
+	 * smaller than one need more bits to keep the same relative precision.
+	 */
+	private static int fractionBits(MathContext mc, BigDecimal x)
+	{
+		int digits = mc.getPrecision() + Math.max(0, x.scale() - x.precision());
+		return (int)(digits * 3.33) + 16;
+	}
+
+	/**
+	 * Multiplies two fixed point numbers, truncating towards zero so that
+	 * the terms of a series with alternating signs eventually become zero.
+	 */
+	private static BigInteger multiply(BigInteger a, BigInteger b, int bits)
+	{
+		BigInteger product = a.multiply(b);
+		if (product.signum() < 0) {
+			return product.negate().shiftRight(bits).negate();
+		}
+
+		return product.shiftRight(bits);
+	}
+
+	private static BigInteger toFixed(BigDecimal x, int bits)
+	{
+		return x.multiply(new BigDecimal(BigInteger.ONE.shiftLeft(bits)))
+			.setScale(0, RoundingMode.HALF_EVEN).toBigInteger();
+	}
+
+	private static BigDecimal fromFixed(BigInteger x, int bits, MathContext mc)
+	{
+		return new BigDecimal(x).divide(new BigDecimal(BigInteger.ONE.shiftLeft(bits)), mc);
+	}
+
+	private static boolean isInteger(BigDecimal x)
+	{
+		return x.signum() == 0 || x.scale() <= 0 || x.stripTrailingZeros().scale() <= 0;
+	}
+
+	/**
+	 * The number of digits before the decimal point, not counting any
+	 * leading zeros.
+	 */
+	private static int integerDigits(BigDecimal x)
+	{
+		return Math.max(0, x.precision() - x.scale());
+	}
+
+	private static int digits(int n)
+	{
+		return Integer.toString(Math.abs(n)).length();
+	}
+
+	private static MathContext widen(MathContext mc, int digits)
+	{
+		return new MathContext(mc.getPrecision() + GUARD_DIGITS + digits, RoundingMode.HALF_EVEN);
+	}
+
+	private static void checkPrecision(MathContext mc)
+	{
+		if (mc.getPrecision() == 0) {
+			throw new IllegalArgumentException("Unlimited precision isn't supported.");
+		}
+	}
+}
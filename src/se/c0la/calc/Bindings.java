@@ -0,0 +1,97 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * A small set of variable values that apply to a single evaluation.
+ * Bindings are meant to be cheap to create and are backed by a pair of
+ * arrays that are searched linearly, which is faster than hashing for the
+ * handful of variables an expression usually has.
+ *
+ * Bindings aren't thread safe, and each thread should use its own.
+ */
+public class Bindings
+{
+	private String[] names;
+	private BigDecimal[] values;
+	private int size;
+
+	public Bindings()
+	{
+		this(4);
+	}
+
+	public Bindings(int capacity)
+	{
+		this.names = new String[Math.max(capacity, 1)];
+		this.values = new BigDecimal[names.length];
+		this.size = 0;
+	}
+
+	/**
+	 * Binds name to value, replacing any previous value.
+	 * Returns this, so that calls can be chained.
+	 */
+	public Bindings set(String name, BigDecimal value)
+	{
+		int index = indexOf(name);
+		if (index != -1) {
+			values[index] = value;
+			return this;
+		}
+
+		if (size == names.length) {
+			String[] newNames = new String[size * 2];
+			BigDecimal[] newValues = new BigDecimal[size * 2];
+			System.arraycopy(names, 0, newNames, 0, size);
+			System.arraycopy(values, 0, newValues, 0, size);
+			names = newNames;
+			values = newValues;
+		}
+
+		names[size] = name;
+		values[size] = value;
+		size++;
+
+		return this;
+	}
+
+	/**
+	 * Returns the value bound to name, or null if there is none.
+	 */
+	public BigDecimal get(String name)
+	{
+		int index = indexOf(name);
+		if (index == -1) {
+			return null;
+		}
+
+		return values[index];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public Bindings copy()
+	{
+		Bindings copy = new Bindings(names.length);
+		System.arraycopy(names, 0, copy.names, 0, size);
+		System.arraycopy(values, 0, copy.values, 0, size);
+		copy.size = size;
+
+		return copy;
+	}
+
+	private int indexOf(String name)
+	{
+		for (int i = 0; i < size; i++) {
+			if (names[i] == name || names[i].equals(name)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,190 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * An expression lowered by the BytecodeCompiler into a flat array of
+ * instructions in postfix order, which is run by a StackMachine or a
+ * DoubleStackMachine. Each instruction is a single int, with the opcode in
+ * the low byte and its operand in the rest, so a stored formula takes four
+ * bytes per node instead of a tree of objects.
+ *
+ * Operands refer to the constant pool, the function table or a slot of
+ * the frame. Like the frame of a LinkedExpression, it starts with the
+ * parameters, followed by the other variables that the expression refers
+ * to and finally the values of shared DAG nodes.
+ *
+ * A program only holds names, so it doesn't depend on any evaluator and
+ * can be run by machines for different evaluators. It can also be turned
+ * back into an expression, for use with the other evaluators.
+ */
+public final class Bytecode
+{
+	static final int CONST = 0;
+	static final int LOAD = 1;
+	static final int STORE = 2;
+	static final int ADD = 3;
+	static final int SUB = 4;
+	static final int MUL = 5;
+	static final int DIV = 6;
+	static final int POW = 7;
+	static final int NEG = 8;
+	static final int CALL = 9;
+
+	static final int OPCODE_BITS = 8;
+	static final int OPCODE_MASK = (1 << OPCODE_BITS) - 1;
+	static final int MAX_OPERAND = (1 << (32 - OPCODE_BITS)) - 1;
+
+	private static final String[] MNEMONICS = {
+		"const", "load", "store", "add", "sub", "mul", "div", "pow", "neg", "call"
+	};
+
+	private static final TokenType[] OPERATORS = {
+		TokenType.PLUS, TokenType.MINUS, TokenType.ASTERIX, TokenType.SLASH, TokenType.EXPONENT
+	};
+
+	final int[] code;
+	final BigDecimal[] decimals;
+	final double[] doubles;
+	final String[] names;
+	final String[] functions;
+	final int[] arities;
+	final int parameterCount;
+	final int frameSize;
+	final int maxStack;
+
+	Bytecode(int[] code, BigDecimal[] decimals, double[] doubles, String[] names,
+		String[] functions, int[] arities, int parameterCount, int frameSize, int maxStack)
+	{
+		this.code = code;
+		this.decimals = decimals;
+		this.doubles = doubles;
+		this.names = names;
+		this.functions = functions;
+		this.arities = arities;
+		this.parameterCount = parameterCount;
+		this.frameSize = frameSize;
+		this.maxStack = maxStack;
+	}
+
+	static int opcode(int instruction)
+	{
+		return instruction & OPCODE_MASK;
+	}
+
+	static int operand(int instruction)
+	{
+		return instruction >>> OPCODE_BITS;
+	}
+
+	public int getParameterCount() { return parameterCount; }
+	public int getMaxStack() { return maxStack; }
+
+	/**
+	 * Returns the number of instructions.
+	 */
+	public int size()
+	{
+		return code.length;
+	}
+
+	/**
+	 * Returns the slot of the named variable, or -1 if the program doesn't
+	 * refer to it and it isn't a parameter.
+	 */
+	public int getSlot(String name)
+	{
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Rebuilds the expression that the program was compiled from. Shared
+	 * nodes are shared again, with the same slots, while a unary plus is
+	 * gone for good. Every call returns a new expression.
+	 */
+	public ASTNode toExpression()
+	{
+		ASTNode[] stack = new ASTNode[maxStack];
+		ASTNode[] stored = new ASTNode[frameSize];
+		int sp = 0;
+
+		for (int pc = 0; pc < code.length; pc++) {
+			int instruction = code[pc];
+			int operand = operand(instruction);
+			switch (opcode(instruction)) {
+				case CONST:
+					stack[sp++] = new ASTNode(new Lexeme(TokenType.NUMBER, decimals[operand].toString()));
+					break;
+				case LOAD:
+					if (operand < names.length) {
+						stack[sp++] = new ASTNode(new Lexeme(TokenType.VARIABLE, names[operand]));
+					} else {
+						stack[sp++] = stored[operand];
+					}
+					break;
+				case STORE:
+					stored[operand] = stack[sp - 1];
+					stored[operand].setSlot(operand - names.length);
+					break;
+				case NEG:
+					stack[sp - 1] = new ASTNode(new Lexeme(TokenType.MINUS), stack[sp - 1], null);
+					break;
+				case CALL:
+					Lexeme function = new Lexeme(TokenType.FUNCTION, functions[operand]);
+					if (arities[operand] == 1) {
+						stack[sp - 1] = new ASTNode(function, stack[sp - 1], null);
+						break;
+					}
+
+					ASTNode[] arguments = new ASTNode[arities[operand]];
+					sp -= arguments.length;
+					System.arraycopy(stack, sp, arguments, 0, arguments.length);
+					stack[sp++] = new ASTNode(function, arguments);
+					break;
+				default:
+					sp--;
+					stack[sp - 1] = new ASTNode(new Lexeme(OPERATORS[opcode(instruction) - ADD]),
+						stack[sp - 1], stack[sp]);
+					break;
+			}
+		}
+
+		stack[0].setSlotCount(frameSize - names.length);
+		return stack[0];
+	}
+
+	/**
+	 * Lists the instructions, one per line.
+	 */
+	public String toString()
+	{
+		StringBuilder buffer = new StringBuilder();
+		for (int pc = 0; pc < code.length; pc++) {
+			int instruction = code[pc];
+			int operand = operand(instruction);
+
+			buffer.append(pc).append('\t').append(MNEMONICS[opcode(instruction)]);
+			switch (opcode(instruction)) {
+				case CONST:
+					buffer.append(' ').append(decimals[operand]);
+					break;
+				case LOAD:
+				case STORE:
+					buffer.append(' ').append(operand < names.length ? names[operand] : "$" + operand);
+					break;
+				case CALL:
+					buffer.append(' ').append(functions[operand]).append('/').append(arities[operand]);
+					break;
+			}
+			buffer.append('\n');
+		}
+
+		return buffer.toString();
+	}
+}
@@ -0,0 +1,226 @@
+package se.c0la.calc;
+
+import java.util.*;
+import java.math.*;
+
+/**
+ * Lowers an AST into Bytecode, by emitting the nodes in postfix order.
+ * Constants and functions are collected into pools, so a number or a
+ * function that occurs several times is only stored once.
+ *
+ * A node that is shared in a DAG is emitted the first time it's reached,
+ * followed by a store of its value, and every later occurrence is a load
+ * of that slot. Since the instructions run in the order they're emitted,
+ * the value is always there before it's needed.
+ */
+public class BytecodeCompiler
+{
+	/**
+	 * Holds what's needed while compiling a single expression.
+	 */
+	private static class Program
+	{
+		private int[] code = new int[16];
+		private int length;
+		private int depth;
+		private int maxStack;
+
+		private List<String> names;
+		private List<BigDecimal> decimals = new ArrayList<BigDecimal>();
+		private Map<String, Integer> constants = new HashMap<String, Integer>();
+		private List<String> functions = new ArrayList<String>();
+		private List<Integer> arities = new ArrayList<Integer>();
+		private int slotCount;
+		private Map<ASTNode, Integer> stored = new IdentityHashMap<ASTNode, Integer>();
+	}
+
+	/**
+	 * Compiles an expression. The parameters get the first slots of the
+	 * frame, in the order they're given, and any other variable gets a
+	 * slot after them.
+	 */
+	public Bytecode compile(ASTNode node, String... parameters)
+	throws EvaluationException
+	{
+		Program program = new Program();
+		program.names = new ArrayList<String>(Arrays.asList(parameters));
+		program.slotCount = node.getSlotCount();
+
+		// All variables are assigned slots first, since the values of
+		// shared DAG nodes are stored after them.
+		collectVariables(node, program);
+		compile(node, program);
+
+		double[] doubles = new double[program.decimals.size()];
+		for (int i = 0; i < doubles.length; i++) {
+			doubles[i] = program.decimals.get(i).doubleValue();
+		}
+
+		int[] arities = new int[program.arities.size()];
+		for (int i = 0; i < arities.length; i++) {
+			arities[i] = program.arities.get(i);
+		}
+
+		return new Bytecode(Arrays.copyOf(program.code, program.length),
+			program.decimals.toArray(new BigDecimal[program.decimals.size()]),
+			doubles,
+			program.names.toArray(new String[program.names.size()]),
+			program.functions.toArray(new String[program.functions.size()]),
+			arities,
+			parameters.length,
+			program.names.size() + program.slotCount,
+			program.maxStack);
+	}
+
+	private void collectVariables(ASTNode node, Program program)
+	{
+		if (node == null) {
+			return;
+		}
+
+		Lexeme lexeme = node.getLexeme();
+		if (lexeme.getType() == TokenType.VARIABLE) {
+			if (!program.names.contains(lexeme.getValue())) {
+				program.names.add(lexeme.getValue());
+			}
+			return;
+		}
+
+		if (node.getArguments() != null) {
+			for (ASTNode argument : node.getArguments()) {
+				collectVariables(argument, program);
+			}
+			return;
+		}
+
+		collectVariables(node.getLeft(), program);
+		collectVariables(node.getRight(), program);
+	}
+
+	private void compile(ASTNode node, Program program)
+	throws EvaluationException
+	{
+		Integer slot = program.stored.get(node);
+		if (slot != null) {
+			emit(program, Bytecode.LOAD, slot, 1);
+			return;
+		}
+
+		compileNode(node, program);
+
+		int shared = node.getSlot();
+		if (shared >= 0 && shared < program.slotCount) {
+			slot = program.names.size() + shared;
+			emit(program, Bytecode.STORE, slot, 0);
+			program.stored.put(node, slot);
+		}
+	}
+
+	private void compileNode(ASTNode node, Program program)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				emit(program, Bytecode.CONST, constant(lexeme, program), 1);
+				return;
+			case VARIABLE:
+				emit(program, Bytecode.LOAD, program.names.indexOf(lexeme.getValue()), 1);
+				return;
+			case FUNCTION:
+				ASTNode[] arguments = node.getArguments();
+				for (ASTNode argument : arguments) {
+					compile(argument, program);
+				}
+				emit(program, Bytecode.CALL, function(lexeme.getValue(), arguments.length, program),
+					1 - arguments.length);
+				return;
+		}
+
+		compile(node.getLeft(), program);
+		if (node.getRight() == null) {
+			switch (lexeme.getType()) {
+				case PLUS:
+					return;
+				case MINUS:
+					emit(program, Bytecode.NEG, 0, 0);
+					return;
+				default:
+					throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+			}
+		}
+
+		compile(node.getRight(), program);
+		switch (lexeme.getType()) {
+			case PLUS:
+				emit(program, Bytecode.ADD, 0, -1);
+				return;
+			case MINUS:
+				emit(program, Bytecode.SUB, 0, -1);
+				return;
+			case ASTERIX:
+				emit(program, Bytecode.MUL, 0, -1);
+				return;
+			case SLASH:
+				emit(program, Bytecode.DIV, 0, -1);
+				return;
+			case EXPONENT:
+				emit(program, Bytecode.POW, 0, -1);
+				return;
+			default:
+				throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+		}
+	}
+
+	private static int constant(Lexeme lexeme, Program program)
+	throws EvaluationException
+	{
+		Integer index = program.constants.get(lexeme.getValue());
+		if (index == null) {
+			try {
+				program.decimals.add(lexeme.getDecimalValue());
+			}
+			catch (NumberFormatException e) {
+				throw new EvaluationException("Invalid number specified");
+			}
+
+			index = program.decimals.size() - 1;
+			program.constants.put(lexeme.getValue(), index);
+		}
+
+		return index;
+	}
+
+	private static int function(String name, int arity, Program program)
+	{
+		for (int i = 0; i < program.functions.size(); i++) {
+			if (program.functions.get(i).equals(name) && program.arities.get(i) == arity) {
+				return i;
+			}
+		}
+
+		program.functions.add(name);
+		program.arities.add(arity);
+		return program.functions.size() - 1;
+	}
+
+	/**
+	 * Appends an instruction which changes the depth of the stack by the
+	 * given amount.
+	 */
+	private static void emit(Program program, int opcode, int operand, int effect)
+	throws EvaluationException
+	{
+		if (operand > Bytecode.MAX_OPERAND) {
+			throw new EvaluationException("Expression is too large to compile.");
+		}
+
+		if (program.length == program.code.length) {
+			program.code = Arrays.copyOf(program.code, program.length * 2);
+		}
+
+		program.code[program.length++] = opcode | (operand << Bytecode.OPCODE_BITS);
+		program.depth += effect;
+		program.maxStack = Math.max(program.maxStack, program.depth);
+	}
+}
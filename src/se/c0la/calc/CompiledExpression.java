@@ -0,0 +1,14 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * An expression that has been translated by the ExpressionCompiler.
+ * The arguments are bound to the parameters in the order they were
+ * given when the expression was compiled.
+ */
+public interface CompiledExpression
+{
+	public BigDecimal evaluate(BigDecimal... arguments)
+	throws EvaluationException;
+}
@@ -0,0 +1,60 @@
+package se.c0la.calc;
+
+import java.math.*;
+import java.lang.invoke.*;
+
+/**
+ * The template of the classes made by the ExpressionCompiler. It's never
+ * loaded as it is. Instead its class file is defined again as a hidden
+ * class for every compiled expression, with the method handle and the
+ * number of parameters as class data.
+ *
+ * Since the handle is in a static final field, the JIT treats it as a
+ * constant, and can inline the whole chain of handles into evaluate().
+ */
+final class ConstantHandleExpression implements CompiledExpression
+{
+	private static final MethodHandle HANDLE;
+	private static final int PARAMETER_COUNT;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			HANDLE = MethodHandles.classDataAt(lookup, "_", MethodHandle.class, 0);
+			PARAMETER_COUNT = MethodHandles.classDataAt(lookup, "_", Integer.class, 1).intValue();
+		}
+		catch (IllegalAccessException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	ConstantHandleExpression()
+	{
+	}
+
+	public BigDecimal evaluate(BigDecimal... arguments)
+	throws EvaluationException
+	{
+		if (arguments.length != PARAMETER_COUNT) {
+			throw new EvaluationException("Expected " + PARAMETER_COUNT + " arguments, got "
+				+ arguments.length + ".");
+		}
+
+		try {
+			return (BigDecimal)HANDLE.invokeExact(arguments);
+		}
+		catch (NumberFormatException e) {
+			throw new EvaluationException("Invalid number specified");
+		}
+		catch (RuntimeException e) {
+			throw new EvaluationException("Evaluation of expression failed");
+		}
+		catch (Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			// The handles only call methods without checked exceptions.
+			throw new EvaluationException("Evaluation of expression failed");
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package se.c0la.calc;
+
+/**
+ * Thrown by the VariableStore when a definition would make a variable
+ * depend on itself.
+ */
+public class CyclicDependencyException extends EvaluationException
+{
+	public CyclicDependencyException(String message)
+	{
+		super(message);
+	}
+}
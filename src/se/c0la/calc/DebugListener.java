@@ -0,0 +1,71 @@
+package se.c0la.calc;
+
+import java.io.*;
+import java.util.*;
+import java.math.*;
+
+/**
+ * Prints what the parser and the evaluator are doing, which is what
+ * setDebug(true) installs. The lexemes given to the parser are printed
+ * one per line, and the evaluated nodes are printed as an indented tree.
+ */
+public class DebugListener implements EvaluationListener, ParseListener
+{
+	private PrintStream out;
+
+	public DebugListener(PrintStream out)
+	{
+		this.out = out;
+	}
+
+	public void parsing(List<Lexeme> lexemes)
+	{
+		for (Lexeme lexeme : lexemes) {
+			if (lexeme.getType() == TokenType.NUMBER) {
+				out.println("NUMBER: " + lexeme.getValue());
+			} else {
+				out.println(lexeme.getType());
+			}
+		}
+
+		out.println();
+	}
+
+	public void parsed(List<Lexeme> lexemes, ASTNode node)
+	{
+	}
+
+	public void enter(ASTNode node, int depth)
+	{
+		StringBuilder line = new StringBuilder();
+		for (int i = 0; i < 2*depth; i++) {
+			line.append(' ');
+		}
+
+		out.println(line.append(describe(node)));
+	}
+
+	public void exit(ASTNode node, int depth, BigDecimal value)
+	{
+		if (depth == 0) {
+			out.println();
+		}
+	}
+
+	/**
+	 * Returns the name, number or operator of a node.
+	 */
+	public static String describe(ASTNode node)
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+			case VARIABLE:
+				return lexeme.getValue();
+			case FUNCTION:
+				return lexeme.getValue() + "()";
+			default:
+				return lexeme.getType().toString();
+		}
+	}
+}
@@ -0,0 +1,350 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * Computes the derivative of an expression with respect to a variable,
+ * as a new expression. All operators and built-in functions are handled,
+ * including the ones with several arguments. min, max and clamp are
+ * rewritten using |t| = sqrt(t^2), so their derivatives are undefined
+ * exactly where they have a kink.
+ *
+ * The derivative is built with the trivial identities applied as it goes,
+ * so that for instance the derivative of 3*x is 3 rather than 0*x+3*1.
+ * If an ExpressionOptimizer is given, it's used to simplify the result
+ * further, with the variable as the only free variable.
+ *
+ * Any other variable is treated as a constant. The result may share
+ * nodes with the expression it was computed from.
+ */
+public class Differentiator
+{
+	private ExpressionOptimizer optimizer;
+
+	public Differentiator()
+	{
+		this(null);
+	}
+
+	public Differentiator(ExpressionOptimizer optimizer)
+	{
+		this.optimizer = optimizer;
+	}
+
+	public ASTNode differentiate(ASTNode node, String var)
+	throws EvaluationException
+	{
+		ASTNode derivative = derive(node, var);
+		if (optimizer != null) {
+			derivative = optimizer.optimize(derivative, var);
+		}
+
+		return derivative;
+	}
+
+	private ASTNode derive(ASTNode node, String var)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				return zero();
+			case VARIABLE:
+				return lexeme.getValue().equals(var) ? one() : zero();
+			case FUNCTION:
+				return deriveFunction(node, var);
+		}
+
+		ASTNode u = node.getLeft();
+		ASTNode du = derive(u, var);
+		if (node.getRight() == null) {
+			switch (lexeme.getType()) {
+				case PLUS:
+					return du;
+				case MINUS:
+					return negate(du);
+				default:
+					throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+			}
+		}
+
+		ASTNode v = node.getRight();
+		ASTNode dv = derive(v, var);
+		switch (lexeme.getType()) {
+			case PLUS:
+				return add(du, dv);
+			case MINUS:
+				return subtract(du, dv);
+			case ASTERIX:
+				// (uv)' = u'v + uv'
+				return add(multiply(du, v), multiply(u, dv));
+			case SLASH:
+				// (u/v)' = (u'v - uv') / v^2
+				if (isZero(dv)) {
+					return divide(du, v);
+				}
+				return divide(subtract(multiply(du, v), multiply(u, dv)), power(v, two()));
+			case EXPONENT:
+				return derivePower(u, v, du, dv);
+			default:
+				throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+		}
+	}
+
+	/**
+	 * A constant exponent gives the familiar n u^(n-1) u', and a constant
+	 * base gives u^v ln(u) v'. Otherwise the general rule
+	 * (u^v)' = u^v (v' ln(u) + v u'/u) is used.
+	 */
+	private ASTNode derivePower(ASTNode u, ASTNode v, ASTNode du, ASTNode dv)
+	{
+		if (isZero(dv)) {
+			return multiply(multiply(v, power(u, subtract(v, one()))), du);
+		}
+
+		ASTNode uv = power(u, v);
+		if (isZero(du)) {
+			return multiply(multiply(uv, call("ln", u)), dv);
+		}
+
+		return multiply(uv, add(multiply(dv, call("ln", u)), divide(multiply(v, du), u)));
+	}
+
+	private ASTNode deriveFunction(ASTNode node, String var)
+	throws EvaluationException
+	{
+		String name = node.getLexeme().getValue();
+		ASTNode[] args = node.getArguments();
+
+		if (args.length == 1) {
+			ASTNode u = args[0];
+			ASTNode du = derive(u, var);
+			if (isZero(du)) {
+				return zero();
+			}
+
+			if (name.equals("sin")) {
+				return multiply(call("cos", u), du);
+			}
+			else if (name.equals("cos")) {
+				return negate(multiply(call("sin", u), du));
+			}
+			else if (name.equals("tan")) {
+				return divide(du, power(call("cos", u), two()));
+			}
+			else if (name.equals("ln") || name.equals("log")) {
+				return divide(du, u);
+			}
+			else if (name.equals("log10")) {
+				return divide(du, multiply(u, call("ln", constant(BigDecimal.TEN))));
+			}
+			else if (name.equals("sqrt")) {
+				return divide(du, multiply(two(), call("sqrt", u)));
+			}
+			else if (name.equals("asin")) {
+				return divide(du, call("sqrt", subtract(one(), power(u, two()))));
+			}
+			else if (name.equals("acos")) {
+				return negate(divide(du, call("sqrt", subtract(one(), power(u, two())))));
+			}
+			else if (name.equals("atan")) {
+				return divide(du, add(one(), power(u, two())));
+			}
+			else if (name.equals("min") || name.equals("max")) {
+				return du;
+			}
+		}
+		else if (name.equals("min") || name.equals("max")) {
+			return deriveExtremum(name, args, var);
+		}
+		else if (name.equals("clamp") && args.length == 3) {
+			// clamp(x, lo, hi) = max(lo, min(x, hi))
+			ASTNode inner = call("min", args[0], args[2]);
+			return deriveExtremum("max", new ASTNode[] { args[1], inner }, var);
+		}
+		else if (name.equals("atan2") && args.length == 2) {
+			// atan2(y, x)' = (x y' - y x') / (x^2 + y^2)
+			ASTNode y = args[0];
+			ASTNode x = args[1];
+			return divide(subtract(multiply(x, derive(y, var)), multiply(y, derive(x, var))),
+				add(power(x, two()), power(y, two())));
+		}
+		else if (name.equals("hypot") && args.length == 2) {
+			// hypot(x, y)' = (x x' + y y') / hypot(x, y)
+			ASTNode x = args[0];
+			ASTNode y = args[1];
+			return divide(add(multiply(x, derive(x, var)), multiply(y, derive(y, var))), node);
+		}
+		else if (name.equals("pow") && args.length == 2) {
+			return derivePower(args[0], args[1], derive(args[0], var), derive(args[1], var));
+		}
+
+		throw new EvaluationException("Function " + name + " can't be differentiated.");
+	}
+
+	/**
+	 * min(a, b) = (a + b - |a - b|) / 2 and max(a, b) = (a + b + |a - b|) / 2,
+	 * where |t|' = t t' / |t|. Further arguments are handled pairwise from
+	 * the left.
+	 */
+	private ASTNode deriveExtremum(String name, ASTNode[] args, String var)
+	throws EvaluationException
+	{
+		ASTNode a = args[0];
+		ASTNode da = derive(a, var);
+		for (int i = 1; i < args.length; i++) {
+			ASTNode b = args[i];
+			ASTNode db = derive(b, var);
+
+			ASTNode t = subtract(a, b);
+			ASTNode abs = divide(multiply(t, subtract(da, db)), call("sqrt", power(t, two())));
+			ASTNode sum = add(da, db);
+			da = divide(name.equals("min") ? subtract(sum, abs) : add(sum, abs), two());
+
+			a = call(name, a, b);
+		}
+
+		return da;
+	}
+
+	private static ASTNode constant(BigDecimal value)
+	{
+		return new ASTNode(new Lexeme(TokenType.NUMBER, value.toString()));
+	}
+
+	private static ASTNode zero() { return constant(BigDecimal.ZERO); }
+	private static ASTNode one() { return constant(BigDecimal.ONE); }
+	private static ASTNode two() { return constant(BigDecimal.valueOf(2)); }
+
+	private static ASTNode call(String name, ASTNode... arguments)
+	{
+		Lexeme function = new Lexeme(TokenType.FUNCTION, name);
+		if (arguments.length == 1) {
+			return new ASTNode(function, arguments[0], null);
+		}
+
+		return new ASTNode(function, arguments);
+	}
+
+	private static boolean isValue(ASTNode node, BigDecimal value)
+	{
+		if (node.getLexeme().getType() != TokenType.NUMBER) {
+			return false;
+		}
+
+		try {
+			return node.getLexeme().getDecimalValue().compareTo(value) == 0;
+		}
+		catch (NumberFormatException e) {
+			return false;
+		}
+	}
+
+	private static boolean isZero(ASTNode node)
+	{
+		return isValue(node, BigDecimal.ZERO);
+	}
+
+	private static boolean isOne(ASTNode node)
+	{
+		return isValue(node, BigDecimal.ONE);
+	}
+
+	private static boolean isNumber(ASTNode node)
+	{
+		return node.getLexeme().getType() == TokenType.NUMBER;
+	}
+
+	// The constructors below apply the identities that keep derivatives
+	// from filling up with multiplications by zero and one. Only sums and
+	// products of two numbers are folded, since they're exact.
+
+	private static ASTNode add(ASTNode a, ASTNode b)
+	{
+		if (isZero(a)) {
+			return b;
+		}
+		if (isZero(b)) {
+			return a;
+		}
+		if (isNumber(a) && isNumber(b)) {
+			return constant(a.getLexeme().getDecimalValue().add(b.getLexeme().getDecimalValue()));
+		}
+
+		return new ASTNode(new Lexeme(TokenType.PLUS), a, b);
+	}
+
+	private static ASTNode subtract(ASTNode a, ASTNode b)
+	{
+		if (isZero(b)) {
+			return a;
+		}
+		if (isZero(a)) {
+			return negate(b);
+		}
+		if (isNumber(a) && isNumber(b)) {
+			return constant(a.getLexeme().getDecimalValue().subtract(b.getLexeme().getDecimalValue()));
+		}
+
+		return new ASTNode(new Lexeme(TokenType.MINUS), a, b);
+	}
+
+	private static ASTNode multiply(ASTNode a, ASTNode b)
+	{
+		if (isZero(a) || isZero(b)) {
+			return zero();
+		}
+		if (isOne(a)) {
+			return b;
+		}
+		if (isOne(b)) {
+			return a;
+		}
+		if (isNumber(a) && isNumber(b)) {
+			return constant(a.getLexeme().getDecimalValue().multiply(b.getLexeme().getDecimalValue()));
+		}
+
+		return new ASTNode(new Lexeme(TokenType.ASTERIX), a, b);
+	}
+
+	private static ASTNode divide(ASTNode a, ASTNode b)
+	{
+		if (isZero(a)) {
+			return zero();
+		}
+		if (isOne(b)) {
+			return a;
+		}
+
+		return new ASTNode(new Lexeme(TokenType.SLASH), a, b);
+	}
+
+	private static ASTNode power(ASTNode a, ASTNode b)
+	{
+		if (isZero(b)) {
+			return one();
+		}
+		if (isOne(b)) {
+			return a;
+		}
+
+		return new ASTNode(new Lexeme(TokenType.EXPONENT), a, b);
+	}
+
+	private static ASTNode negate(ASTNode a)
+	{
+		if (isZero(a)) {
+			return zero();
+		}
+		if (isNumber(a)) {
+			return constant(a.getLexeme().getDecimalValue().negate());
+		}
+
+		// Two negations cancel each other out.
+		if (a.getLexeme().getType() == TokenType.MINUS && a.getRight() == null) {
+			return a.getLeft();
+		}
+
+		return new ASTNode(new Lexeme(TokenType.MINUS), a, null);
+	}
+}
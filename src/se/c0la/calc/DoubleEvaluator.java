@@ -0,0 +1,594 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * Evaluates expressions using primitive doubles rather than BigDecimal.
+ * This is a lot faster than the regular Evaluator and doesn't allocate
+ * anything while walking the tree, at the cost of only giving double
+ * precision.
+ *
+ * Results follow the usual floating point rules, so division by zero or
+ * the logarithm of a negative number gives infinity or NaN rather than
+ * an EvaluationException.
+ */
+public class DoubleEvaluator
+{
+	private Map<String, Double> variables;
+	private Map<String, DoubleMathFunction> functions;
+	private Map<String, MultiArgumentFunction> multiFunctions;
+	private Set<String> pureFunctions;
+
+	public DoubleEvaluator()
+	{
+		variables = new HashMap<String, Double>();
+		functions = new HashMap<String, DoubleMathFunction>();
+		multiFunctions = new HashMap<String, MultiArgumentFunction>();
+		pureFunctions = new HashSet<String>();
+
+		addVariable("pi", Math.PI);
+		addVariable("e", Math.E);
+
+		addFunction("sin", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.sin(arg); }
+		}, true);
+		addFunction("cos", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.cos(arg); }
+		}, true);
+		addFunction("tan", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.tan(arg); }
+		}, true);
+		addFunction("ln", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.log(arg); }
+		}, true);
+		addFunction("log", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.log(arg); }
+		}, true);
+		addFunction("log10", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.log(arg) / Math.log(10.0); }
+		}, true);
+		addFunction("sqrt", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.sqrt(arg); }
+		}, true);
+		addFunction("asin", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.asin(arg); }
+		}, true);
+		addFunction("acos", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.acos(arg); }
+		}, true);
+		addFunction("atan", new DoubleMathFunction() {
+			public double apply(double arg) { return Math.atan(arg); }
+		}, true);
+
+		addFunction("min", MultiArgumentFunction.MIN, true);
+		addFunction("max", MultiArgumentFunction.MAX, true);
+		addFunction("atan2", MultiArgumentFunction.ATAN2, true);
+		addFunction("hypot", MultiArgumentFunction.HYPOT, true);
+		addFunction("pow", MultiArgumentFunction.POW, true);
+		addFunction("clamp", MultiArgumentFunction.CLAMP, true);
+	}
+
+	public void addVariable(String name, double value)
+	{
+		variables.put(name, value);
+	}
+
+	public void addFunction(String name, DoubleMathFunction function)
+	{
+		addFunction(name, function, false);
+	}
+
+	/**
+	 * See Evaluator.addFunction(String, MathFunction, boolean).
+	 */
+	public void addFunction(String name, DoubleMathFunction function, boolean pure)
+	{
+		functions.put(name, function);
+		multiFunctions.remove(name);
+
+		if (pure) {
+			pureFunctions.add(name);
+		} else {
+			pureFunctions.remove(name);
+		}
+	}
+
+	public void addFunction(String name, MultiArgumentFunction function)
+	{
+		addFunction(name, function, false);
+	}
+
+	/**
+	 * See Evaluator.addFunction(String, MultiArgumentFunction, boolean).
+	 */
+	public void addFunction(String name, MultiArgumentFunction function, boolean pure)
+	{
+		multiFunctions.put(name, function);
+		functions.remove(name);
+
+		if (pure) {
+			pureFunctions.add(name);
+		} else {
+			pureFunctions.remove(name);
+		}
+	}
+
+	public boolean isPureFunction(String name)
+	{
+		return pureFunctions.contains(name);
+	}
+
+	public double getVariable(String name)
+	throws UndefinedVariableException
+	{
+		Double value = variables.get(name);
+		if (value == null) {
+			throw new UndefinedVariableException("Variable " + name + " is undefined.");
+		}
+
+		return value.doubleValue();
+	}
+
+	public DoubleMathFunction getFunction(String name)
+	throws UndefinedFunctionException
+	{
+		DoubleMathFunction func = functions.get(name);
+		if (func == null) {
+			throw new UndefinedFunctionException("Function " + name + " is undefined.");
+		}
+
+		return func;
+	}
+
+	/**
+	 * See Evaluator.getMultiArgumentFunction(String, int).
+	 */
+	public MultiArgumentFunction getMultiArgumentFunction(String name, int count)
+	throws EvaluationException
+	{
+		MultiArgumentFunction func = multiFunctions.get(name);
+		if (func == null) {
+			if (functions.containsKey(name)) {
+				throw new EvaluationException("Function " + name + " takes a single argument.");
+			}
+			throw new UndefinedFunctionException("Function " + name + " is undefined.");
+		}
+
+		if (!func.accepts(count)) {
+			throw new EvaluationException("Function " + name + " can't be called with "
+				+ count + " arguments.");
+		}
+
+		return func;
+	}
+
+	/**
+	 * State that belongs to a single evaluation: the values of shared DAG
+	 * nodes, and the variables that are bound for this evaluation only.
+	 */
+	private static class Scope
+	{
+		private double[] shared;
+		private String[] names;
+		private double[] values;
+
+		public Scope(ASTNode root, String[] names, double[] values)
+		{
+			if (root.getSlotCount() > 0) {
+				this.shared = new double[root.getSlotCount()];
+				Arrays.fill(this.shared, Double.NaN);
+			}
+
+			this.names = names;
+			this.values = values;
+		}
+	}
+
+	private static final String[] NO_NAMES = new String[0];
+	private static final double[] NO_VALUES = new double[0];
+
+	/**
+	 * Shared nodes in a DAG are evaluated once, and their values kept in
+	 * the shared array. NaN marks a value that hasn't been computed yet,
+	 * so a shared node that evaluates to NaN is simply computed again.
+	 */
+	private double evaluate(ASTNode node, Scope scope)
+	throws EvaluationException
+	{
+		double[] shared = scope.shared;
+		int slot = node.getSlot();
+		if (shared == null || slot < 0 || slot >= shared.length) {
+			return evaluateNode(node, scope);
+		}
+
+		double result = shared[slot];
+		if (Double.isNaN(result)) {
+			result = evaluateNode(node, scope);
+			shared[slot] = result;
+		}
+
+		return result;
+	}
+
+	private double evaluateNode(ASTNode node, Scope scope)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				return lexeme.getDoubleValue();
+			case VARIABLE:
+				String name = lexeme.getValue();
+				for (int i = 0; i < scope.names.length; i++) {
+					if (scope.names[i].equals(name)) {
+						return scope.values[i];
+					}
+				}
+				return getVariable(name);
+			case FUNCTION:
+				return evaluateFunction(node, scope);
+			case PLUS:
+				if (node.getRight() == null) {
+					return evaluate(node.getLeft(), scope);
+				}
+				return evaluate(node.getLeft(), scope) + evaluate(node.getRight(), scope);
+			case MINUS:
+				if (node.getRight() == null) {
+					return -evaluate(node.getLeft(), scope);
+				}
+				return evaluate(node.getLeft(), scope) - evaluate(node.getRight(), scope);
+			case ASTERIX:
+				return evaluate(node.getLeft(), scope) * evaluate(node.getRight(), scope);
+			case SLASH:
+				return evaluate(node.getLeft(), scope) / evaluate(node.getRight(), scope);
+			case EXPONENT:
+				return Math.pow(evaluate(node.getLeft(), scope), evaluate(node.getRight(), scope));
+			default:
+				throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+		}
+	}
+
+	/**
+	 * Functions of up to three arguments are called through the matching
+	 * overload, so that only calls with more arguments than that need an
+	 * array.
+	 */
+	private double evaluateFunction(ASTNode node, Scope scope)
+	throws EvaluationException
+	{
+		String name = node.getLexeme().getValue();
+		ASTNode[] arguments = node.getArguments();
+
+		DoubleMathFunction func = functions.get(name);
+		if (func != null && arguments.length == 1) {
+			return func.apply(evaluate(arguments[0], scope));
+		}
+
+		MultiArgumentFunction multi = getMultiArgumentFunction(name, arguments.length);
+		switch (arguments.length) {
+			case 1:
+				return multi.apply(evaluate(arguments[0], scope));
+			case 2:
+				return multi.apply(evaluate(arguments[0], scope),
+					evaluate(arguments[1], scope));
+			case 3:
+				return multi.apply(evaluate(arguments[0], scope),
+					evaluate(arguments[1], scope),
+					evaluate(arguments[2], scope));
+			default:
+				double[] args = new double[arguments.length];
+				for (int i = 0; i < arguments.length; i++) {
+					args[i] = evaluate(arguments[i], scope);
+				}
+				return multi.apply(args);
+		}
+	}
+
+	public double evaluate(ASTNode node)
+	throws EvaluationException
+	{
+		return evaluateRoot(node, new Scope(node, NO_NAMES, NO_VALUES));
+	}
+
+	/**
+	 * Evaluates the expression with var bound to value, without changing
+	 * the variables of the evaluator, like Evaluator.evaluate(ASTNode,
+	 * String, BigDecimal).
+	 */
+	public double evaluate(ASTNode node, String var, double value)
+	throws EvaluationException
+	{
+		return evaluateRoot(node, new Scope(node, new String[] { var }, new double[] { value }));
+	}
+
+	/**
+	 * Evaluates the expression with each of the variables in names bound
+	 * to the value at the same position in values, like
+	 * IntervalEvaluator.evaluate(ASTNode, String[], Interval[]).
+	 */
+	public double evaluate(ASTNode node, String[] names, double[] values)
+	throws EvaluationException
+	{
+		return evaluateRoot(node, new Scope(node, names, values));
+	}
+
+	private double evaluateRoot(ASTNode node, Scope scope)
+	throws EvaluationException
+	{
+		try {
+			return evaluate(node, scope);
+		}
+		catch (NumberFormatException e) {
+			throw new EvaluationException("Invalid number specified");
+		}
+		catch (EvaluationException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new EvaluationException("Evaluation of expression failed");
+		}
+	}
+
+	/**
+	 * The number of points that are processed together by evaluateBatch().
+	 * Small enough for the intermediate columns to stay in the cache.
+	 */
+	private static final int BATCH_SIZE = 1024;
+
+	/**
+	 * Holds the state of a single call to evaluateBatch(): the variable
+	 * being varied, the current chunk of input values, the columns used
+	 * for intermediate results, and the columns of shared DAG nodes.
+	 */
+	private static class Batch
+	{
+		private String var;
+		private double[] xs;
+		private int offset;
+		private int length;
+
+		private List<double[]> free;
+		private double[][] shared;
+		private boolean[] computed;
+
+		public Batch(String var, int slotCount)
+		{
+			this.var = var;
+			this.free = new ArrayList<double[]>();
+			this.shared = new double[slotCount][];
+			this.computed = new boolean[slotCount];
+		}
+
+		public void start(double[] xs, int offset, int length)
+		{
+			this.xs = xs;
+			this.offset = offset;
+			this.length = length;
+
+			Arrays.fill(computed, false);
+		}
+
+		public double[] acquire()
+		{
+			if (free.isEmpty()) {
+				return new double[BATCH_SIZE];
+			}
+
+			return free.remove(free.size() - 1);
+		}
+
+		public void release(double[] column)
+		{
+			free.add(column);
+		}
+	}
+
+	/**
+	 * Evaluates the expression once for every value in xs, which is bound
+	 * to var, and stores the results in the corresponding positions in out.
+	 * The tree is walked once per chunk of values rather than once per value,
+	 * and every operator is applied to a whole column at a time.
+	 *
+	 * The variable map isn't modified, so several threads may evaluate
+	 * batches using the same evaluator at the same time.
+	 */
+	public void evaluateBatch(ASTNode node, String var, double[] xs, double[] out)
+	throws EvaluationException
+	{
+		if (out.length < xs.length) {
+			throw new IllegalArgumentException("Output array is shorter than the input.");
+		}
+
+		evaluateBatch(node, var, xs, out, 0, xs.length);
+	}
+
+	/**
+	 * Like evaluateBatch(ASTNode, String, double[], double[]), but only
+	 * evaluates the values in xs from index from, inclusive, to index to,
+	 * exclusive. The results are stored at the same indices in out.
+	 */
+	public void evaluateBatch(ASTNode node, String var, double[] xs, double[] out, int from, int to)
+	throws EvaluationException
+	{
+		Batch batch = new Batch(var, node.getSlotCount());
+		double[] result = batch.acquire();
+
+		try {
+			for (int offset = from; offset < to; offset += BATCH_SIZE) {
+				int length = Math.min(BATCH_SIZE, to - offset);
+				batch.start(xs, offset, length);
+
+				evaluateColumn(node, batch, result);
+				System.arraycopy(result, 0, out, offset, length);
+			}
+		}
+		catch (NumberFormatException e) {
+			throw new EvaluationException("Invalid number specified");
+		}
+		catch (EvaluationException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new EvaluationException("Evaluation of expression failed");
+		}
+	}
+
+	private void evaluateColumn(ASTNode node, Batch batch, double[] dst)
+	throws EvaluationException
+	{
+		int slot = node.getSlot();
+		if (slot < 0 || slot >= batch.shared.length) {
+			evaluateColumnNode(node, batch, dst);
+			return;
+		}
+
+		double[] column = batch.shared[slot];
+		if (column == null) {
+			column = new double[BATCH_SIZE];
+			batch.shared[slot] = column;
+		}
+
+		if (!batch.computed[slot]) {
+			evaluateColumnNode(node, batch, column);
+			batch.computed[slot] = true;
+		}
+
+		System.arraycopy(column, 0, dst, 0, batch.length);
+	}
+
+	private void evaluateColumnNode(ASTNode node, Batch batch, double[] dst)
+	throws EvaluationException
+	{
+		int length = batch.length;
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				Arrays.fill(dst, 0, length, lexeme.getDoubleValue());
+				return;
+			case VARIABLE:
+				if (lexeme.getValue().equals(batch.var)) {
+					System.arraycopy(batch.xs, batch.offset, dst, 0, length);
+				} else {
+					Arrays.fill(dst, 0, length, getVariable(lexeme.getValue()));
+				}
+				return;
+			case FUNCTION:
+				evaluateFunctionColumn(node, batch, dst);
+				return;
+		}
+
+		evaluateColumn(node.getLeft(), batch, dst);
+
+		if (node.getRight() == null) {
+			switch (lexeme.getType()) {
+				case PLUS:
+					return;
+				case MINUS:
+					for (int i = 0; i < length; i++) {
+						dst[i] = -dst[i];
+					}
+					return;
+				default:
+					throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+			}
+		}
+
+		double[] right = batch.acquire();
+		evaluateColumn(node.getRight(), batch, right);
+
+		switch (lexeme.getType()) {
+			case PLUS:
+				for (int i = 0; i < length; i++) {
+					dst[i] += right[i];
+				}
+				break;
+			case MINUS:
+				for (int i = 0; i < length; i++) {
+					dst[i] -= right[i];
+				}
+				break;
+			case ASTERIX:
+				for (int i = 0; i < length; i++) {
+					dst[i] *= right[i];
+				}
+				break;
+			case SLASH:
+				for (int i = 0; i < length; i++) {
+					dst[i] /= right[i];
+				}
+				break;
+			case EXPONENT:
+				for (int i = 0; i < length; i++) {
+					dst[i] = Math.pow(dst[i], right[i]);
+				}
+				break;
+			default:
+				throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+		}
+
+		batch.release(right);
+	}
+
+	private void evaluateFunctionColumn(ASTNode node, Batch batch, double[] dst)
+	throws EvaluationException
+	{
+		int length = batch.length;
+		String name = node.getLexeme().getValue();
+		ASTNode[] arguments = node.getArguments();
+
+		DoubleMathFunction func = functions.get(name);
+		if (func != null && arguments.length == 1) {
+			evaluateColumn(arguments[0], batch, dst);
+			for (int i = 0; i < length; i++) {
+				dst[i] = func.apply(dst[i]);
+			}
+			return;
+		}
+
+		MultiArgumentFunction multi = getMultiArgumentFunction(name, arguments.length);
+
+		// The first argument is evaluated into dst, and the others into
+		// columns of their own.
+		double[][] columns = new double[arguments.length][];
+		columns[0] = dst;
+		evaluateColumn(arguments[0], batch, dst);
+		for (int j = 1; j < arguments.length; j++) {
+			columns[j] = batch.acquire();
+			evaluateColumn(arguments[j], batch, columns[j]);
+		}
+
+		switch (arguments.length) {
+			case 1:
+				for (int i = 0; i < length; i++) {
+					dst[i] = multi.apply(dst[i]);
+				}
+				break;
+			case 2:
+				double[] second = columns[1];
+				for (int i = 0; i < length; i++) {
+					dst[i] = multi.apply(dst[i], second[i]);
+				}
+				break;
+			case 3:
+				double[] middle = columns[1];
+				double[] last = columns[2];
+				for (int i = 0; i < length; i++) {
+					dst[i] = multi.apply(dst[i], middle[i], last[i]);
+				}
+				break;
+			default:
+				double[] args = new double[arguments.length];
+				for (int i = 0; i < length; i++) {
+					for (int j = 0; j < arguments.length; j++) {
+						args[j] = columns[j][i];
+					}
+					dst[i] = multi.apply(args);
+				}
+				break;
+		}
+
+		for (int j = 1; j < arguments.length; j++) {
+			batch.release(columns[j]);
+		}
+	}
+}
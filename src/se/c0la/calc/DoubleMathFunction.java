@@ -0,0 +1,6 @@
+package se.c0la.calc;
+
+public interface DoubleMathFunction
+{
+	public double apply(double input);
+}
@@ -0,0 +1,159 @@
+package se.c0la.calc;
+
+/**
+ * Runs Bytecode with doubles. Like the StackMachine, it resolves names
+ * in the evaluator when it's created, and keeps its stack and frame
+ * between evaluations, so it should only be used by a single thread at a
+ * time. Evaluation doesn't allocate anything, except for calls to
+ * functions with more than three arguments.
+ */
+public class DoubleStackMachine
+{
+	private final int[] code;
+	private final double[] constants;
+	private final DoubleMathFunction[] functions;
+	private final MultiArgumentFunction[] multiFunctions;
+	private final int[] arities;
+	private final int parameterCount;
+	private final double[] frame;
+	private final double[] stack;
+
+	public DoubleStackMachine(Bytecode bytecode, DoubleEvaluator evaluator)
+	throws EvaluationException
+	{
+		this.code = bytecode.code;
+		this.constants = bytecode.doubles;
+		this.arities = bytecode.arities;
+		this.parameterCount = bytecode.parameterCount;
+
+		functions = new DoubleMathFunction[arities.length];
+		multiFunctions = new MultiArgumentFunction[arities.length];
+		for (int i = 0; i < arities.length; i++) {
+			String name = bytecode.functions[i];
+			if (arities[i] == 1) {
+				try {
+					functions[i] = evaluator.getFunction(name);
+					continue;
+				}
+				catch (UndefinedFunctionException e) {
+					// Might still be a function with several arguments.
+				}
+			}
+
+			multiFunctions[i] = evaluator.getMultiArgumentFunction(name, arities[i]);
+		}
+
+		frame = new double[bytecode.frameSize];
+		for (int i = parameterCount; i < bytecode.names.length; i++) {
+			frame[i] = evaluator.getVariable(bytecode.names[i]);
+		}
+
+		stack = new double[bytecode.maxStack];
+	}
+
+	public double evaluate(double... arguments)
+	throws EvaluationException
+	{
+		if (arguments.length != parameterCount) {
+			throw new EvaluationException("Expected " + parameterCount + " arguments, got "
+				+ arguments.length + ".");
+		}
+
+		System.arraycopy(arguments, 0, frame, 0, parameterCount);
+
+		try {
+			return run();
+		}
+		catch (Exception e) {
+			throw new EvaluationException("Evaluation of expression failed");
+		}
+	}
+
+	private double run()
+	{
+		final int[] code = this.code;
+		final double[] frame = this.frame;
+		final double[] stack = this.stack;
+		int sp = 0;
+
+		for (int pc = 0; pc < code.length; pc++) {
+			int instruction = code[pc];
+			int operand = instruction >>> Bytecode.OPCODE_BITS;
+			switch (instruction & Bytecode.OPCODE_MASK) {
+				case Bytecode.CONST:
+					stack[sp++] = constants[operand];
+					break;
+				case Bytecode.LOAD:
+					stack[sp++] = frame[operand];
+					break;
+				case Bytecode.STORE:
+					frame[operand] = stack[sp - 1];
+					break;
+				case Bytecode.ADD:
+					sp--;
+					stack[sp - 1] += stack[sp];
+					break;
+				case Bytecode.SUB:
+					sp--;
+					stack[sp - 1] -= stack[sp];
+					break;
+				case Bytecode.MUL:
+					sp--;
+					stack[sp - 1] *= stack[sp];
+					break;
+				case Bytecode.DIV:
+					sp--;
+					stack[sp - 1] /= stack[sp];
+					break;
+				case Bytecode.POW:
+					sp--;
+					stack[sp - 1] = Math.pow(stack[sp - 1], stack[sp]);
+					break;
+				case Bytecode.NEG:
+					stack[sp - 1] = -stack[sp - 1];
+					break;
+				case Bytecode.CALL:
+					sp = call(operand, sp);
+					break;
+			}
+		}
+
+		return stack[0];
+	}
+
+	/**
+	 * Like the DoubleEvaluator, functions of up to three arguments are
+	 * called through the matching overload. Returns the new stack pointer.
+	 */
+	private int call(int index, int sp)
+	{
+		final double[] stack = this.stack;
+
+		if (functions[index] != null) {
+			stack[sp - 1] = functions[index].apply(stack[sp - 1]);
+			return sp;
+		}
+
+		MultiArgumentFunction multi = multiFunctions[index];
+		int count = arities[index];
+		sp -= count;
+		switch (count) {
+			case 1:
+				stack[sp] = multi.apply(stack[sp]);
+				break;
+			case 2:
+				stack[sp] = multi.apply(stack[sp], stack[sp + 1]);
+				break;
+			case 3:
+				stack[sp] = multi.apply(stack[sp], stack[sp + 1], stack[sp + 2]);
+				break;
+			default:
+				double[] args = new double[count];
+				System.arraycopy(stack, sp, args, 0, count);
+				stack[sp] = multi.apply(args);
+				break;
+		}
+
+		return sp + 1;
+	}
+}
@@ -0,0 +1,22 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * Is told about every node of an AST as the Evaluator evaluates it. A
+ * node's children are entered and exited between its own enter() and
+ * exit(), and depth is 0 for the root of the expression.
+ *
+ * Evaluation is only traced when a listener has been installed with
+ * Evaluator.setListener(), and costs nothing extra otherwise.
+ */
+public interface EvaluationListener
+{
+	public void enter(ASTNode node, int depth);
+
+	/**
+	 * Called when the node has been evaluated, with a null value if
+	 * evaluating it failed.
+	 */
+	public void exit(ASTNode node, int depth, BigDecimal value);
+}
@@ -5,12 +5,16 @@ import java.math.*;
 
 public class Evaluator
 {
-	private boolean debug;
+	private EvaluationListener listener;
+	private final boolean frozen;
 
 	private MathContext ctx;
 
-	private Map<String, BigDecimal> variables;
-	private Map<String, MathFunction> functions;
+	private final Map<String, BigDecimal> variables;
+	private final Map<String, MathFunction> functions;
+	private final Map<String, MultiArgumentFunction> multiFunctions;
+	private final Set<String> pureFunctions;
+	private final Map<String, MathFunction> builtins;
 
 	public Evaluator()
 	{
@@ -19,197 +23,673 @@ public class Evaluator
 	
 	public Evaluator(boolean debug)
 	{
-		this.debug = debug;
+		this.listener = debug ? new DebugListener(System.out) : null;
+		this.frozen = false;
 
 		variables = new HashMap<String, BigDecimal>();
 		functions = new HashMap<String, MathFunction>();
+		multiFunctions = new HashMap<String, MultiArgumentFunction>();
+		pureFunctions = new HashSet<String>();
+		builtins = new HashMap<String, MathFunction>();
 		ctx = new MathContext(10);
 	
 		defineConstants();
-		
-		addFunction("sin", new MathFunction() {
+		defineFunctions();
+
+		pureFunctions.addAll(builtins.keySet());
+
+		addFunction("min", MultiArgumentFunction.MIN, true);
+		addFunction("max", MultiArgumentFunction.MAX, true);
+		addFunction("atan2", MultiArgumentFunction.ATAN2, true);
+		addFunction("hypot", MultiArgumentFunction.HYPOT, true);
+		addFunction("pow", MultiArgumentFunction.POW, true);
+		addFunction("clamp", MultiArgumentFunction.CLAMP, true);
+	}
+
+	/**
+	 * Creates a frozen copy of source. The built-in functions refer to
+	 * the precision of the evaluator they belong to, so the copy defines
+	 * its own rather than sharing those of the source. Functions with
+	 * several arguments are passed the precision when they're called, and
+	 * can be shared as they are.
+	 */
+	protected Evaluator(Evaluator source)
+	{
+		this.listener = source.listener;
+		this.frozen = true;
+
+		variables = new HashMap<String, BigDecimal>(source.variables);
+		functions = new HashMap<String, MathFunction>();
+		multiFunctions = new HashMap<String, MultiArgumentFunction>(source.multiFunctions);
+		pureFunctions = new HashSet<String>(source.pureFunctions);
+		builtins = new HashMap<String, MathFunction>();
+		ctx = source.ctx;
+
+		defineFunctions();
+
+		for (Map.Entry<String, MathFunction> entry : source.functions.entrySet()) {
+			if (source.builtins.get(entry.getKey()) != entry.getValue()) {
+				functions.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		// A built-in that has been replaced by a function with several
+		// arguments mustn't come back in the copy.
+		functions.keySet().removeAll(multiFunctions.keySet());
+	}
+
+	/**
+	 * The built-in functions use doubles as long as the precision is low
+	 * enough for that to give the right result, and BigMath otherwise.
+	 */
+	private void defineFunctions()
+	{
+		defineFunction("sin", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.sin(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.sin(arg.doubleValue()), ctx);
+				}
+				return BigMath.sin(arg, ctx);
+			}
 		});
-		addFunction("cos", new MathFunction() {
+		defineFunction("cos", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.cos(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.cos(arg.doubleValue()), ctx);
+				}
+				return BigMath.cos(arg, ctx);
+			}
 		});
-		addFunction("tan", new MathFunction() {
+		defineFunction("tan", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.tan(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.tan(arg.doubleValue()), ctx);
+				}
+				return BigMath.tan(arg, ctx);
+			}
 		});
-		addFunction("ln", new MathFunction() {
+		defineFunction("ln", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.log(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.log(arg.doubleValue()), ctx);
+				}
+				return BigMath.ln(arg, ctx);
+			}
 		});
-		addFunction("log", new MathFunction() {
+		defineFunction("log", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.log(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.log(arg.doubleValue()), ctx);
+				}
+				return BigMath.ln(arg, ctx);
+			}
 		});
-		addFunction("log10", new MathFunction() {
+		defineFunction("log10", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.log(arg.doubleValue()) / Math.log(10.0), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.log(arg.doubleValue()) / Math.log(10.0), ctx);
+				}
+				return BigMath.log10(arg, ctx);
+			}
 		});
-		addFunction("sqrt", new MathFunction() {
+		defineFunction("sqrt", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.sqrt(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.sqrt(arg.doubleValue()), ctx);
+				}
+				return BigMath.sqrt(arg, ctx);
+			}
 		});
-		addFunction("asin", new MathFunction() {
+		defineFunction("asin", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.asin(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.asin(arg.doubleValue()), ctx);
+				}
+				return BigMath.asin(arg, ctx);
+			}
 		});
-		addFunction("acos", new MathFunction() {
+		defineFunction("acos", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.acos(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.acos(arg.doubleValue()), ctx);
+				}
+				return BigMath.acos(arg, ctx);
+			}
 		});
-		addFunction("atan", new MathFunction() {
+		defineFunction("atan", new MathFunction() {
 			public BigDecimal apply(BigDecimal arg)
-			{ return new BigDecimal(Math.atan(arg.doubleValue()), ctx); }
+			{
+				if (isDoublePrecision()) {
+					return new BigDecimal(Math.atan(arg.doubleValue()), ctx);
+				}
+				return BigMath.atan(arg, ctx);
+			}
 		});
 	}
 
+	private void defineFunction(String name, MathFunction function)
+	{
+		functions.put(name, function);
+		builtins.put(name, function);
+	}
+
 	private void defineConstants()
 	{
-		addVariable("pi", new BigDecimal(Math.PI, ctx));
-		addVariable("e", new BigDecimal(Math.E, ctx));
+		if (isDoublePrecision()) {
+			variables.put("pi", new BigDecimal(Math.PI, ctx));
+			variables.put("e", new BigDecimal(Math.E, ctx));
+		} else {
+			variables.put("pi", BigMath.pi(ctx));
+			variables.put("e", BigMath.e(ctx));
+		}
+	}
+
+	private boolean isDoublePrecision()
+	{
+		return BigMath.isDoublePrecision(ctx);
+	}
+
+	/**
+	 * Returns an immutable copy of this evaluator, with the variables,
+	 * functions and precision it has right now. A frozen evaluator can be
+	 * shared by any number of threads, each of which passes its own
+	 * Bindings to evaluate(). Later changes to this evaluator aren't
+	 * visible in the copy.
+	 *
+	 * As with any object that's shared between threads, the frozen
+	 * evaluator has to be published safely, for instance through a final
+	 * field or by handing it to an executor.
+	 */
+	public Evaluator freeze()
+	{
+		if (frozen) {
+			return this;
+		}
+
+		return new Evaluator(this);
+	}
+
+	public boolean isFrozen()
+	{
+		return frozen;
+	}
+
+	private void checkMutable()
+	{
+		if (frozen) {
+			throw new IllegalStateException("Evaluator is frozen.");
+		}
 	}
 
 	public void setPrecision(int precision)
 	{
+		checkMutable();
+
 		ctx = new MathContext(precision);
 		defineConstants();
 	}
 	
+	/**
+	 * Prints every node as it's evaluated, by installing a DebugListener.
+	 */
 	public void setDebug(boolean debug)
 	{
-		this.debug = debug;
+		setListener(debug ? new DebugListener(System.out) : null);
+	}
+
+	/**
+	 * Installs a listener which is told about every node that is
+	 * evaluated, or removes it if listener is null. Frozen copies share
+	 * the listener, so it has to be thread safe if they're used by
+	 * several threads.
+	 */
+	public void setListener(EvaluationListener listener)
+	{
+		checkMutable();
+
+		this.listener = listener;
+	}
+
+	public EvaluationListener getListener()
+	{
+		return listener;
 	}
 	
 	public void addVariable(String name, BigDecimal value)
 	{
+		checkMutable();
+
 		variables.put(name, value);
 	}
+
+	public void removeVariable(String name)
+	{
+		checkMutable();
+
+		variables.remove(name);
+	}
 	
 	public void addFunction(String name, MathFunction function)
 	{
+		addFunction(name, function, false);
+	}
+
+	/**
+	 * A pure function always returns the same result for the same
+	 * argument, and has no side effects. Calls to pure functions with
+	 * constant arguments may be folded by the ExpressionOptimizer.
+	 */
+	public void addFunction(String name, MathFunction function, boolean pure)
+	{
+		checkMutable();
+
 		functions.put(name, function);
+		multiFunctions.remove(name);
+
+		if (pure) {
+			pureFunctions.add(name);
+		} else {
+			pureFunctions.remove(name);
+		}
+	}
+
+	public void addDoubleFunction(String name, DoubleMathFunction function)
+	{
+		addDoubleFunction(name, function, false);
+	}
+
+	/**
+	 * Adds a function that is computed using doubles. The result is
+	 * rounded to the precision of the evaluator. It has a name of its own,
+	 * since a lambda would fit both this and addFunction(String,
+	 * MathFunction, boolean).
+	 */
+	public void addDoubleFunction(String name, final DoubleMathFunction function, boolean pure)
+	{
+		addFunction(name, new MathFunction() {
+			public BigDecimal apply(BigDecimal arg)
+			{ return new BigDecimal(function.apply(arg.doubleValue()), ctx); }
+		}, pure);
+	}
+
+	public void addFunction(String name, MultiArgumentFunction function)
+	{
+		addFunction(name, function, false);
 	}
 
-	private BigDecimal evaluate(ASTNode node, int level)
+	/**
+	 * Adds a function that takes comma separated arguments. A name refers
+	 * to either a single argument function or one of these, so this
+	 * replaces any MathFunction of the same name.
+	 */
+	public void addFunction(String name, MultiArgumentFunction function, boolean pure)
+	{
+		checkMutable();
+
+		multiFunctions.put(name, function);
+		functions.remove(name);
+
+		if (pure) {
+			pureFunctions.add(name);
+		} else {
+			pureFunctions.remove(name);
+		}
+	}
+
+	public boolean isPureFunction(String name)
+	{
+		return pureFunctions.contains(name);
+	}
+
+	public MathContext getMathContext()
+	{
+		return ctx;
+	}
+
+	public BigDecimal getVariable(String name)
+	throws UndefinedVariableException
+	{
+		BigDecimal value = variables.get(name);
+		if (value == null) {
+			throw new UndefinedVariableException("Variable " + name + " is undefined.");
+		}
+
+		return value;
+	}
+
+	public MathFunction getFunction(String name)
+	throws UndefinedFunctionException
+	{
+		MathFunction func = functions.get(name);
+		if (func == null) {
+			throw new UndefinedFunctionException("Function " + name + " is undefined.");
+		}
+
+		return func;
+	}
+
+	/**
+	 * Returns the function with several arguments called name, and checks
+	 * that it can be called with count arguments.
+	 */
+	public MultiArgumentFunction getMultiArgumentFunction(String name, int count)
 	throws EvaluationException
+	{
+		MultiArgumentFunction func = multiFunctions.get(name);
+		if (func == null) {
+			if (functions.containsKey(name)) {
+				throw new EvaluationException("Function " + name + " takes a single argument.");
+			}
+			throw new UndefinedFunctionException("Function " + name + " is undefined.");
+		}
+
+		if (!func.accepts(count)) {
+			throw new EvaluationException("Function " + name + " can't be called with "
+				+ count + " arguments.");
+		}
+
+		return func;
+	}
+
+	/**
+	 * When the quotient has a non-terminating decimal expansion, division
+	 * is rounded to the precision of the evaluator. At a low precision
+	 * this is done using doubles.
+	 */
+	BigDecimal divide(BigDecimal left, BigDecimal right)
 	{
 		try {
-			Lexeme lexeme = node.getLexeme();
-		
-			if (debug) {
-				StringBuffer spaces = new StringBuffer();
-				for (int i = 0; i < 2*level; i++) {
-					spaces.append(" ");
-				}
-			
-				if (lexeme.getType() == TokenType.NUMBER || lexeme.getType() == TokenType.VARIABLE) {
-					System.out.println(spaces.toString() + lexeme.getValue());
-				}
-				else if (lexeme.getType() == TokenType.FUNCTION) {
-					System.out.println(spaces.toString() + lexeme.getValue() + "()");
-				}
-				else {
-					System.out.println(spaces.toString() + lexeme.getType());
-				}
+			return left.divide(right);
+		} 
+		catch (ArithmeticException e) {
+			if (isDoublePrecision() || right.signum() == 0) {
+				return new BigDecimal(left.doubleValue() / right.doubleValue(), ctx);
 			}
-		
-			if (lexeme.getType() == TokenType.NUMBER) {
-				return new BigDecimal(lexeme.getValue(), ctx);
+			return left.divide(right, ctx);
+		}
+	}
+
+	BigDecimal power(BigDecimal left, BigDecimal right)
+	{
+		if (isDoublePrecision()) {
+			return new BigDecimal(Math.pow(left.doubleValue(), right.doubleValue()), ctx);
+		}
+		return BigMath.pow(left, right, ctx);
+	}
+
+	/**
+	 * Every function call made while evaluating an AST goes through one
+	 * of these, so that a subclass can keep track of them.
+	 */
+	protected BigDecimal call(String name, MathFunction func, BigDecimal arg)
+	{
+		return func.apply(arg);
+	}
+
+	protected BigDecimal call(String name, MultiArgumentFunction func, BigDecimal[] args)
+	{
+		return func.apply(args, ctx);
+	}
+
+	/**
+	 * State that belongs to a single evaluation: the values of shared DAG
+	 * nodes, and the variables that are bound for this evaluation only.
+	 */
+	private static class Scope
+	{
+		private BigDecimal[] shared;
+		private Bindings bindings;
+		private EvaluationListener listener;
+
+		public Scope(ASTNode root, Bindings bindings, EvaluationListener listener)
+		{
+			if (root.getSlotCount() > 0) {
+				this.shared = new BigDecimal[root.getSlotCount()];
 			}
-			else if (lexeme.getType() == TokenType.VARIABLE) {
-				String name = lexeme.getValue();
-				if (!variables.containsKey(name)) {
-					throw new UndefinedVariableException("Variable " + name + " is undefined.");
+
+			this.bindings = bindings;
+			this.listener = listener;
+		}
+	}
+
+	/**
+	 * Nodes that are shared within a DAG are only evaluated the first
+	 * time they're reached. The value is kept in the scope for
+	 * the remainder of the evaluation.
+	 *
+	 * There is no tracing on this path. When a listener is installed,
+	 * trace() is used instead, so evaluation without one doesn't pay for
+	 * it at every node.
+	 */
+	private BigDecimal evaluate(ASTNode node, Scope scope)
+	throws EvaluationException
+	{
+		BigDecimal[] shared = scope.shared;
+		int slot = node.getSlot();
+		if (shared == null || slot < 0 || slot >= shared.length) {
+			return evaluateNode(node, scope);
+		}
+
+		BigDecimal result = shared[slot];
+		if (result == null) {
+			result = evaluateNode(node, scope);
+			shared[slot] = result;
+		}
+
+		return result;
+	}
+
+	private BigDecimal evaluateNode(ASTNode node, Scope scope)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				return lexeme.getDecimalValue().round(ctx);
+			case VARIABLE:
+				return getVariable(lexeme.getValue(), scope);
+			case FUNCTION:
+				ASTNode[] arguments = node.getArguments();
+				MathFunction func = functions.get(lexeme.getValue());
+				if (func != null && arguments.length == 1) {
+					return call(lexeme.getValue(), func, evaluate(arguments[0], scope));
 				}
-			
-				return variables.get(name);
-			}
-			else if (lexeme.getType() == TokenType.FUNCTION) {
-				String name = lexeme.getValue();
-				if (!functions.containsKey(name)) {
-					throw new UndefinedFunctionException("Function " + name + " is undefined.");
+
+				BigDecimal[] args = new BigDecimal[arguments.length];
+				for (int i = 0; i < arguments.length; i++) {
+					args[i] = evaluate(arguments[i], scope);
 				}
-			
-				MathFunction func = functions.get(name);
-				BigDecimal arg = evaluate(node.getLeft(), level + 1);
-			
-				return func.apply(arg);
-			}
-		
-			BigDecimal left = null;
-			if (node.getLeft() != null) {
-				left = evaluate(node.getLeft(), level + 1);
-			}
-		
-			BigDecimal right = null;
-			if (node.getRight() != null) {
-				right = evaluate(node.getRight(), level + 1);
-			}
-		
-			BigDecimal result = null;
-			switch (lexeme.getType()) {
-				case PLUS:
-					if (right == null) {
-						result = left;
-					} else {
-						result = left.add(right);
-					}
-					break;
-				case MINUS:
-					if (right == null) {
-						result = left.negate();
-					} else {
-						result = left.subtract(right);
-					}
-					break;
-				case ASTERIX:
-					result = left.multiply(right);
-					break;
-				case SLASH:
-					try {
-						result = left.divide(right);
-					} 
-					catch (ArithmeticException e) {
-						result = new BigDecimal(left.doubleValue() / right.doubleValue(), ctx);
-					}
-					break;
-				case EXPONENT:
-					result = new BigDecimal(Math.pow(left.doubleValue(), right.doubleValue()), ctx);
-					break;
-			}
-		
-			return result;
+
+				return call(lexeme.getValue(), args);
 		}
-		catch (NumberFormatException e) {
-			throw new EvaluationException("Invalid number specified");
+
+		BigDecimal left = null;
+		if (node.getLeft() != null) {
+			left = evaluate(node.getLeft(), scope);
 		}
-		catch (EvaluationException e) {
-			throw e;
+
+		BigDecimal right = null;
+		if (node.getRight() != null) {
+			right = evaluate(node.getRight(), scope);
 		}
-		catch (Exception e) {
-			if (debug) {
-				e.printStackTrace();
+
+		return operate(lexeme.getType(), left, right);
+	}
+
+	/**
+	 * The same as evaluate(), except that the listener is told about
+	 * every node.
+	 */
+	private BigDecimal trace(ASTNode node, int level, Scope scope)
+	throws EvaluationException
+	{
+		BigDecimal[] shared = scope.shared;
+		int slot = node.getSlot();
+		if (shared != null && slot >= 0 && slot < shared.length && shared[slot] != null) {
+			return shared[slot];
+		}
+
+		EvaluationListener listener = scope.listener;
+		listener.enter(node, level);
+
+		BigDecimal result = null;
+		try {
+			result = traceNode(node, level, scope);
+		}
+		finally {
+			listener.exit(node, level, result);
+		}
+
+		if (shared != null && slot >= 0 && slot < shared.length) {
+			shared[slot] = result;
+		}
+
+		return result;
+	}
+
+	private BigDecimal traceNode(ASTNode node, int level, Scope scope)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				return lexeme.getDecimalValue().round(ctx);
+			case VARIABLE:
+				return getVariable(lexeme.getValue(), scope);
+			case FUNCTION:
+				ASTNode[] arguments = node.getArguments();
+				BigDecimal[] args = new BigDecimal[arguments.length];
+				for (int i = 0; i < arguments.length; i++) {
+					args[i] = trace(arguments[i], level + 1, scope);
+				}
+
+				return call(lexeme.getValue(), args);
+		}
+
+		BigDecimal left = null;
+		if (node.getLeft() != null) {
+			left = trace(node.getLeft(), level + 1, scope);
+		}
+
+		BigDecimal right = null;
+		if (node.getRight() != null) {
+			right = trace(node.getRight(), level + 1, scope);
+		}
+
+		return operate(lexeme.getType(), left, right);
+	}
+
+	private BigDecimal getVariable(String name, Scope scope)
+	throws UndefinedVariableException
+	{
+		if (scope.bindings != null) {
+			BigDecimal value = scope.bindings.get(name);
+			if (value != null) {
+				return value;
 			}
+		}
 
-			throw new EvaluationException("Evaluation of expression failed");
+		return getVariable(name);
+	}
+
+	/**
+	 * Calls a function by name, which is either a single argument
+	 * function or one with several arguments.
+	 */
+	private BigDecimal call(String name, BigDecimal[] args)
+	throws EvaluationException
+	{
+		MathFunction func = functions.get(name);
+		if (func != null && args.length == 1) {
+			return call(name, func, args[0]);
+		}
+
+		return call(name, getMultiArgumentFunction(name, args.length), args);
+	}
+
+	/**
+	 * Applies a unary operator if right is null, and a binary one
+	 * otherwise.
+	 */
+	private BigDecimal operate(TokenType operator, BigDecimal left, BigDecimal right)
+	{
+		switch (operator) {
+			case PLUS:
+				return right == null ? left : left.add(right);
+			case MINUS:
+				return right == null ? left.negate() : left.subtract(right);
+			case ASTERIX:
+				return left.multiply(right);
+			case SLASH:
+				return divide(left, right);
+			case EXPONENT:
+				return power(left, right);
+			default:
+				return null;
 		}
 	}
 	
 	public BigDecimal evaluate(ASTNode node)
 	throws EvaluationException
 	{
-		BigDecimal res = evaluate(node, 0);
-		
-		if (debug) {
-			System.out.println();
+		return evaluateRoot(node, new Scope(node, null, listener));
+	}
+
+	/**
+	 * Evaluates the expression with var bound to value, without changing
+	 * the variables of the evaluator. This makes it possible for several
+	 * threads to evaluate expressions using the same evaluator, as long as
+	 * no variables or functions are added at the same time.
+	 */
+	public BigDecimal evaluate(ASTNode node, String var, BigDecimal value)
+	throws EvaluationException
+	{
+		return evaluate(node, new Bindings(1).set(var, value));
+	}
+
+	/**
+	 * Evaluates the expression with the variables in bindings taking
+	 * precedence over those of the evaluator, which aren't changed.
+	 * Together with freeze(), this lets threads share an evaluator
+	 * without any locking, as long as each uses its own bindings.
+	 */
+	public BigDecimal evaluate(ASTNode node, Bindings bindings)
+	throws EvaluationException
+	{
+		return evaluateRoot(node, new Scope(node, bindings, listener));
+	}
+
+	/**
+	 * Errors other than EvaluationExceptions are turned into one here,
+	 * rather than at each node.
+	 */
+	private BigDecimal evaluateRoot(ASTNode node, Scope scope)
+	throws EvaluationException
+	{
+		try {
+			if (scope.listener != null) {
+				return trace(node, 0, scope);
+			}
+
+			return evaluate(node, scope);
+		}
+		catch (NumberFormatException e) {
+			throw new EvaluationException("Invalid number specified");
+		}
+		catch (EvaluationException e) {
+			throw e;
+		}
+		catch (Exception e) {
+			throw new EvaluationException("Evaluation of expression failed");
 		}
-		
-		return res;
 	}
 }
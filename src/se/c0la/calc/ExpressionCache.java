@@ -0,0 +1,145 @@
+package se.c0la.calc;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Keeps the parsed form of recently used expressions around, so that
+ * an expression that's seen again doesn't have to go through the lexer
+ * and parser a second time.
+ *
+ * The cache is split into a number of segments, each of which is a
+ * small LRU map with a lock of its own. That way threads looking up
+ * different expressions rarely have to wait for each other, at the cost
+ * of eviction being least recently used within a segment rather than
+ * across the whole cache.
+ */
+public class ExpressionCache
+{
+	private static final int SEGMENT_COUNT = 16;
+
+	private class Segment extends LinkedHashMap<String, ASTNode>
+	{
+		private int capacity;
+
+		public Segment(int capacity)
+		{
+			super(16, 0.75f, true);
+			this.capacity = capacity;
+		}
+
+		protected boolean removeEldestEntry(Map.Entry<String, ASTNode> eldest)
+		{
+			if (size() > capacity) {
+				evictions.incrementAndGet();
+				return true;
+			}
+
+			return false;
+		}
+	}
+
+	private Lexer lexer;
+	private ExpressionParser parser;
+
+	private Segment[] segments;
+	private int maximumSize;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+
+	public ExpressionCache(Lexer lexer, ExpressionParser parser, int maximumSize)
+	{
+		if (maximumSize < 1) {
+			throw new IllegalArgumentException("Cache size must be at least 1.");
+		}
+
+		this.lexer = lexer;
+		this.parser = parser;
+		this.maximumSize = maximumSize;
+
+		this.hits = new AtomicLong();
+		this.misses = new AtomicLong();
+		this.evictions = new AtomicLong();
+
+		// Spread the capacity over the segments. The first few segments
+		// take one entry each of what's left over, so that the capacities
+		// add up to exactly the maximum size.
+		int segmentCount = Math.min(SEGMENT_COUNT, maximumSize);
+		int capacity = maximumSize / segmentCount;
+		int remainder = maximumSize % segmentCount;
+
+		segments = new Segment[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segments[i] = new Segment(i < remainder ? capacity + 1 : capacity);
+		}
+	}
+
+	private Segment getSegment(String source)
+	{
+		int hash = source.hashCode();
+		hash ^= (hash >>> 16);
+
+		return segments[(hash & 0x7fffffff) % segments.length];
+	}
+
+	/**
+	 * Returns the AST for the specified expression, parsing it only if
+	 * it isn't already in the cache. Expressions that fail to parse are
+	 * not cached.
+	 */
+	public ASTNode parse(String source)
+	throws UnknownTokenException, ParseErrorException
+	{
+		Segment segment = getSegment(source);
+
+		ASTNode node;
+		synchronized (segment) {
+			node = segment.get(source);
+		}
+
+		if (node != null) {
+			hits.incrementAndGet();
+			return node;
+		}
+
+		misses.incrementAndGet();
+
+		// Parsing happens outside of the lock. If two threads miss on the
+		// same expression at once, both parse it and the last one wins.
+		node = parser.parse(lexer.tokenize(source));
+
+		synchronized (segment) {
+			segment.put(source, node);
+		}
+
+		return node;
+	}
+
+	public void clear()
+	{
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				segment.clear();
+			}
+		}
+	}
+
+	public int size()
+	{
+		int size = 0;
+		for (Segment segment : segments) {
+			synchronized (segment) {
+				size += segment.size();
+			}
+		}
+
+		return size;
+	}
+
+	public int getMaximumSize() { return maximumSize; }
+	public long getHitCount() { return hits.get(); }
+	public long getMissCount() { return misses.get(); }
+	public long getEvictionCount() { return evictions.get(); }
+}
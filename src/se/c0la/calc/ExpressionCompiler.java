@@ -0,0 +1,236 @@
+package se.c0la.calc;
+
+import java.io.*;
+import java.util.*;
+import java.math.*;
+import java.lang.invoke.*;
+
+/**
+ * Translates an AST into a chain of method handles, so that an expression
+ * which is evaluated over and over again doesn't have to walk the tree and
+ * compare token types on every call. The resulting handle is then held as
+ * a constant by a hidden class of its own, defined from the template in
+ * ConstantHandleExpression, so that the JIT can inline it as a whole.
+ *
+ * Numbers, functions and all variables that aren't parameters are resolved
+ * once, when the expression is compiled. Changing a variable or function in
+ * the evaluator afterwards won't affect an already compiled expression.
+ */
+public class ExpressionCompiler
+{
+	private static final MethodType NODE_TYPE =
+		MethodType.methodType(BigDecimal.class, BigDecimal[].class);
+
+	private static final MethodType UNARY_TYPE =
+		MethodType.methodType(BigDecimal.class, BigDecimal.class);
+
+	private static final MethodType BINARY_TYPE =
+		MethodType.methodType(BigDecimal.class, BigDecimal.class, BigDecimal.class);
+
+	private static final MethodHandle ADD;
+	private static final MethodHandle SUBTRACT;
+	private static final MethodHandle MULTIPLY;
+	private static final MethodHandle NEGATE;
+	private static final MethodHandle DIVIDE;
+	private static final MethodHandle POWER;
+	private static final MethodHandle APPLY;
+	private static final MethodHandle APPLY_N;
+
+	private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+	private static final byte[] TEMPLATE;
+
+	static {
+		try {
+			MethodHandles.Lookup lookup = LOOKUP;
+			ADD = lookup.findVirtual(BigDecimal.class, "add", UNARY_TYPE);
+			SUBTRACT = lookup.findVirtual(BigDecimal.class, "subtract", UNARY_TYPE);
+			MULTIPLY = lookup.findVirtual(BigDecimal.class, "multiply", UNARY_TYPE);
+			NEGATE = lookup.findVirtual(BigDecimal.class, "negate",
+				MethodType.methodType(BigDecimal.class));
+			DIVIDE = lookup.findVirtual(Evaluator.class, "divide", BINARY_TYPE);
+			POWER = lookup.findVirtual(Evaluator.class, "power", BINARY_TYPE);
+			APPLY = lookup.findVirtual(MathFunction.class, "apply", UNARY_TYPE);
+			APPLY_N = lookup.findVirtual(MultiArgumentFunction.class, "apply",
+				MethodType.methodType(BigDecimal.class, BigDecimal[].class, MathContext.class));
+		}
+		catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+
+		TEMPLATE = readTemplate();
+	}
+
+	private static byte[] readTemplate()
+	{
+		try {
+			InputStream in = ExpressionCompiler.class.getResourceAsStream("ConstantHandleExpression.class");
+			if (in == null) {
+				throw new ExceptionInInitializerError("ConstantHandleExpression.class is missing");
+			}
+
+			try {
+				ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+				byte[] chunk = new byte[4096];
+				int count;
+				while ((count = in.read(chunk)) > 0) {
+					buffer.write(chunk, 0, count);
+				}
+				return buffer.toByteArray();
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	private Evaluator evaluator;
+
+	public ExpressionCompiler(Evaluator evaluator)
+	{
+		this.evaluator = evaluator;
+	}
+
+	/**
+	 * Compile an expression. The names in parameters are the variables
+	 * that are passed as arguments to CompiledExpression.evaluate(), in
+	 * the same order.
+	 */
+	public CompiledExpression compile(ASTNode node, String... parameters)
+	throws EvaluationException
+	{
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+		for (int i = 0; i < parameters.length; i++) {
+			slots.put(parameters[i], i);
+		}
+
+		MethodHandle handle = compile(node, slots);
+		return define(handle, parameters.length);
+	}
+
+	/**
+	 * Defines a new hidden class from the template, holding handle, and
+	 * returns an instance of it. The class isn't strongly tied to its
+	 * loader, so it's unloaded once the expression is no longer used.
+	 */
+	private static CompiledExpression define(MethodHandle handle, int parameterCount)
+	{
+		try {
+			List<Object> data = Arrays.<Object>asList(handle, Integer.valueOf(parameterCount));
+			MethodHandles.Lookup lookup = LOOKUP.defineHiddenClassWithClassData(TEMPLATE, data, true);
+			MethodHandle constructor = lookup.findConstructor(lookup.lookupClass(),
+				MethodType.methodType(void.class));
+			return (CompiledExpression)constructor.invoke();
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new IllegalStateException("Unable to define compiled expression", e);
+		}
+	}
+
+	/**
+	 * Returns a handle of the type (BigDecimal[])BigDecimal for the
+	 * specified node. Sub-expressions are combined by filtering the
+	 * arguments of the operator with the handles of the operands.
+	 */
+	private MethodHandle compile(ASTNode node, Map<String, Integer> slots)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				try {
+					return constant(new BigDecimal(lexeme.getValue(), evaluator.getMathContext()));
+				}
+				catch (NumberFormatException e) {
+					throw new EvaluationException("Invalid number specified");
+				}
+			case VARIABLE:
+				Integer slot = slots.get(lexeme.getValue());
+				if (slot == null) {
+					return constant(evaluator.getVariable(lexeme.getValue()));
+				}
+
+				return MethodHandles.insertArguments(
+					MethodHandles.arrayElementGetter(BigDecimal[].class), 1, slot.intValue());
+			case FUNCTION:
+				return function(node, slots);
+			case PLUS:
+				if (node.getRight() == null) {
+					return compile(node.getLeft(), slots);
+				}
+				return binary(ADD, node, slots);
+			case MINUS:
+				if (node.getRight() == null) {
+					return MethodHandles.filterReturnValue(compile(node.getLeft(), slots), NEGATE);
+				}
+				return binary(SUBTRACT, node, slots);
+			case ASTERIX:
+				return binary(MULTIPLY, node, slots);
+			case SLASH:
+				return binary(DIVIDE.bindTo(evaluator), node, slots);
+			case EXPONENT:
+				return binary(POWER.bindTo(evaluator), node, slots);
+			default:
+				throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+		}
+	}
+
+	private MethodHandle constant(BigDecimal value)
+	{
+		return MethodHandles.dropArguments(
+			MethodHandles.constant(BigDecimal.class, value), 0, BigDecimal[].class);
+	}
+
+	private MethodHandle function(ASTNode node, Map<String, Integer> slots)
+	throws EvaluationException
+	{
+		String name = node.getLexeme().getValue();
+		ASTNode[] arguments = node.getArguments();
+
+		if (arguments.length == 1) {
+			try {
+				MathFunction func = evaluator.getFunction(name);
+				return MethodHandles.filterReturnValue(compile(arguments[0], slots),
+					APPLY.bindTo(func));
+			}
+			catch (UndefinedFunctionException e) {
+				// Might still be a function with several arguments.
+			}
+		}
+
+		// (BigDecimal, ...)BigDecimal, which collects the arguments into
+		// an array and passes it to the function.
+		MultiArgumentFunction func = evaluator.getMultiArgumentFunction(name, arguments.length);
+		MethodHandle apply = MethodHandles.insertArguments(APPLY_N.bindTo(func), 1,
+			evaluator.getMathContext());
+		return combine(apply.asCollector(BigDecimal[].class, arguments.length), arguments, slots);
+	}
+
+	private MethodHandle binary(MethodHandle operator, ASTNode node, Map<String, Integer> slots)
+	throws EvaluationException
+	{
+		return combine(operator, new ASTNode[] { node.getLeft(), node.getRight() }, slots);
+	}
+
+	private MethodHandle combine(MethodHandle operator, ASTNode[] operands, Map<String, Integer> slots)
+	throws EvaluationException
+	{
+		MethodHandle[] filters = new MethodHandle[operands.length];
+		for (int i = 0; i < operands.length; i++) {
+			filters[i] = compile(operands[i], slots);
+		}
+
+		// (BigDecimal[], ...)BigDecimal, with every argument being the
+		// same parameter array.
+		MethodHandle combined = MethodHandles.filterArguments(operator, 0, filters);
+		return MethodHandles.permuteArguments(combined, NODE_TYPE, new int[operands.length]);
+	}
+}
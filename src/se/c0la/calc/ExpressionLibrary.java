@@ -0,0 +1,250 @@
+package se.c0la.calc;
+
+import java.io.*;
+import java.util.concurrent.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+
+/**
+ * A library of named expressions, stored as Bytecode in a file written by
+ * an ExpressionLibraryWriter. Opening a library maps the file into memory
+ * and reads its header, nothing else. A name is looked up by a binary
+ * search of the index in the mapped file, and its expression is decoded
+ * the first time it's asked for, so even a large library is available at
+ * once and only takes up heap for the expressions that are used.
+ *
+ * All numbers in the file are big-endian ints. It starts with a header of
+ * MAGIC, VERSION and the number of expressions. The index follows, with
+ * one entry per expression, sorted by name: the offset and length of the
+ * name, and the offset of the record. Then come the names in UTF-8, and
+ * the records, which hold the fields of a Bytecode.
+ *
+ * A library may be used by any number of threads.
+ */
+public class ExpressionLibrary
+{
+	static final int MAGIC = 0x43414c43;
+	static final int VERSION = 1;
+	static final int HEADER_SIZE = 12;
+	static final int ENTRY_SIZE = 12;
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private ByteBuffer buffer;
+	private int count;
+	private ConcurrentMap<String, Bytecode> decoded;
+
+	private ExpressionLibrary(ByteBuffer buffer)
+	throws IOException
+	{
+		if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+			throw new IOException("Not an expression library");
+		}
+
+		int version = buffer.getInt(4);
+		if (version != VERSION) {
+			throw new IOException("Unsupported expression library version " + version);
+		}
+
+		this.count = buffer.getInt(8);
+		if (count < 0 || HEADER_SIZE + (long)count * ENTRY_SIZE > buffer.limit()) {
+			throw new IOException("Expression library index is truncated");
+		}
+
+		this.buffer = buffer;
+		this.decoded = new ConcurrentHashMap<String, Bytecode>();
+	}
+
+	/**
+	 * Maps a library file into memory. The file is closed again right
+	 * away, while the mapping stays valid for as long as the library is
+	 * reachable.
+	 */
+	public static ExpressionLibrary open(File file)
+	throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return new ExpressionLibrary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+		finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Reads a library from a buffer, which may hold a file that has been
+	 * read into memory rather than mapped.
+	 */
+	public static ExpressionLibrary wrap(ByteBuffer buffer)
+	throws IOException
+	{
+		return new ExpressionLibrary(buffer.slice());
+	}
+
+	public int size()
+	{
+		return count;
+	}
+
+	/**
+	 * Returns the name of the expression at index, in the order of the
+	 * index, which is the order of the UTF-8 bytes of the names.
+	 */
+	public String getName(int index)
+	{
+		if (index < 0 || index >= count) {
+			throw new IndexOutOfBoundsException("No expression at " + index);
+		}
+
+		ByteBuffer in = buffer.duplicate();
+		int entry = HEADER_SIZE + index * ENTRY_SIZE;
+		byte[] name = new byte[in.getInt(entry + 4)];
+		in.position(in.getInt(entry));
+		in.get(name);
+
+		return new String(name, UTF8);
+	}
+
+	public boolean contains(String name)
+	{
+		return decoded.containsKey(name) || find(name) >= 0;
+	}
+
+	/**
+	 * Returns the named expression, or null if there is no such
+	 * expression in the library.
+	 */
+	public Bytecode getBytecode(String name)
+	{
+		Bytecode bytecode = decoded.get(name);
+		if (bytecode != null) {
+			return bytecode;
+		}
+
+		int index = find(name);
+		if (index < 0) {
+			return null;
+		}
+
+		bytecode = decode(name, buffer.getInt(HEADER_SIZE + index * ENTRY_SIZE + 8));
+
+		// Another thread may have decoded it too, in which case either
+		// copy will do.
+		Bytecode previous = decoded.putIfAbsent(name, bytecode);
+		return previous != null ? previous : bytecode;
+	}
+
+	/**
+	 * Returns a new AST of the named expression, or null if there is no
+	 * such expression in the library.
+	 */
+	public ASTNode getExpression(String name)
+	{
+		Bytecode bytecode = getBytecode(name);
+		return bytecode != null ? bytecode.toExpression() : null;
+	}
+
+	/**
+	 * Binary search of the index, comparing the UTF-8 bytes of name with
+	 * the names in the file without decoding them.
+	 */
+	private int find(String name)
+	{
+		byte[] key = name.getBytes(UTF8);
+
+		int low = 0;
+		int high = count - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int entry = HEADER_SIZE + middle * ENTRY_SIZE;
+			int c = compare(buffer, buffer.getInt(entry), buffer.getInt(entry + 4), key);
+			if (c < 0) {
+				low = middle + 1;
+			} else if (c > 0) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Compares length bytes of buffer at offset with key, treating the
+	 * bytes as unsigned.
+	 */
+	private static int compare(ByteBuffer buffer, int offset, int length, byte[] key)
+	{
+		int n = Math.min(length, key.length);
+		for (int i = 0; i < n; i++) {
+			int c = (buffer.get(offset + i) & 0xff) - (key[i] & 0xff);
+			if (c != 0) {
+				return c;
+			}
+		}
+
+		return length - key.length;
+	}
+
+	static int compare(byte[] bytes, int offset, int length, byte[] key)
+	{
+		return compare(ByteBuffer.wrap(bytes), offset, length, key);
+	}
+
+	private Bytecode decode(String name, int offset)
+	{
+		ByteBuffer in = buffer.duplicate();
+		try {
+			in.position(offset);
+
+			int parameterCount = in.getInt();
+			int frameSize = in.getInt();
+			int maxStack = in.getInt();
+
+			int[] code = new int[in.getInt()];
+			for (int i = 0; i < code.length; i++) {
+				code[i] = in.getInt();
+			}
+
+			String[] names = new String[in.getInt()];
+			for (int i = 0; i < names.length; i++) {
+				names[i] = readString(in);
+			}
+
+			BigDecimal[] decimals = new BigDecimal[in.getInt()];
+			double[] doubles = new double[decimals.length];
+			for (int i = 0; i < decimals.length; i++) {
+				int scale = in.getInt();
+				byte[] unscaled = new byte[in.getInt()];
+				in.get(unscaled);
+				decimals[i] = new BigDecimal(new BigInteger(unscaled), scale);
+				doubles[i] = decimals[i].doubleValue();
+			}
+
+			String[] functions = new String[in.getInt()];
+			int[] arities = new int[functions.length];
+			for (int i = 0; i < functions.length; i++) {
+				functions[i] = readString(in);
+				arities[i] = in.getInt();
+			}
+
+			return new Bytecode(code, decimals, doubles, names, functions, arities,
+				parameterCount, frameSize, maxStack);
+		}
+		catch (RuntimeException e) {
+			throw new IllegalStateException("Expression " + name + " in the library is corrupt", e);
+		}
+	}
+
+	private static String readString(ByteBuffer in)
+	{
+		byte[] bytes = new byte[in.getInt()];
+		in.get(bytes);
+		return new String(bytes, UTF8);
+	}
+}
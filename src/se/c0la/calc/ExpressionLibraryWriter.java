@@ -0,0 +1,170 @@
+package se.c0la.calc;
+
+import java.io.*;
+import java.util.*;
+import java.math.*;
+import java.nio.charset.*;
+
+/**
+ * Collects named expressions as Bytecode and writes them to a file in the
+ * format read by ExpressionLibrary. Expressions should be parsed and
+ * optimized before they're added, so that none of that has to be done
+ * again when the library is loaded.
+ */
+public class ExpressionLibraryWriter
+{
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Names are sorted by their UTF-8 bytes, which is the order in which
+	 * the library compares them when looking a name up.
+	 */
+	private static final Comparator<byte[]> BYTE_ORDER = new Comparator<byte[]>() {
+		public int compare(byte[] a, byte[] b)
+		{
+			return ExpressionLibrary.compare(a, 0, a.length, b);
+		}
+	};
+
+	private SortedMap<byte[], Bytecode> expressions;
+	private BytecodeCompiler compiler;
+
+	public ExpressionLibraryWriter()
+	{
+		this.expressions = new TreeMap<byte[], Bytecode>(BYTE_ORDER);
+		this.compiler = new BytecodeCompiler();
+	}
+
+	public void add(String name, Bytecode bytecode)
+	{
+		byte[] key = name.getBytes(UTF8);
+		if (expressions.containsKey(key)) {
+			throw new IllegalArgumentException("Expression " + name + " is already in the library");
+		}
+
+		expressions.put(key, bytecode);
+	}
+
+	/**
+	 * Compiles an expression and adds it, with the given parameters.
+	 */
+	public void add(String name, ASTNode node, String... parameters)
+	throws EvaluationException
+	{
+		add(name, compiler.compile(node, parameters));
+	}
+
+	public int size()
+	{
+		return expressions.size();
+	}
+
+	public void write(File file)
+	throws IOException
+	{
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		try {
+			write(out);
+		}
+		finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Writes the header, the index and the names, followed by the
+	 * records. The offsets in the index are computed up front, from the
+	 * sizes of the names and records.
+	 */
+	public void write(OutputStream stream)
+	throws IOException
+	{
+		DataOutputStream out = new DataOutputStream(stream);
+
+		List<byte[]> records = new ArrayList<byte[]>(expressions.size());
+		for (Bytecode bytecode : expressions.values()) {
+			records.add(encode(bytecode));
+		}
+
+		int namesOffset = ExpressionLibrary.HEADER_SIZE + expressions.size() * ExpressionLibrary.ENTRY_SIZE;
+		long recordOffset = namesOffset;
+		for (byte[] name : expressions.keySet()) {
+			recordOffset += name.length;
+		}
+
+		out.writeInt(ExpressionLibrary.MAGIC);
+		out.writeInt(ExpressionLibrary.VERSION);
+		out.writeInt(expressions.size());
+
+		int nameOffset = namesOffset;
+		int index = 0;
+		for (byte[] name : expressions.keySet()) {
+			if (recordOffset > Integer.MAX_VALUE) {
+				throw new IOException("Expression library is too large");
+			}
+
+			out.writeInt(nameOffset);
+			out.writeInt(name.length);
+			out.writeInt((int)recordOffset);
+
+			nameOffset += name.length;
+			recordOffset += records.get(index++).length;
+		}
+
+		for (byte[] name : expressions.keySet()) {
+			out.write(name);
+		}
+
+		for (byte[] record : records) {
+			out.write(record);
+		}
+
+		out.flush();
+	}
+
+	private static byte[] encode(Bytecode bytecode)
+	throws IOException
+	{
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buffer);
+
+		out.writeInt(bytecode.parameterCount);
+		out.writeInt(bytecode.frameSize);
+		out.writeInt(bytecode.maxStack);
+
+		out.writeInt(bytecode.code.length);
+		for (int instruction : bytecode.code) {
+			out.writeInt(instruction);
+		}
+
+		out.writeInt(bytecode.names.length);
+		for (String name : bytecode.names) {
+			writeString(out, name);
+		}
+
+		out.writeInt(bytecode.decimals.length);
+		for (BigDecimal decimal : bytecode.decimals) {
+			byte[] unscaled = decimal.unscaledValue().toByteArray();
+			out.writeInt(decimal.scale());
+			out.writeInt(unscaled.length);
+			out.write(unscaled);
+		}
+
+		out.writeInt(bytecode.functions.length);
+		for (int i = 0; i < bytecode.functions.length; i++) {
+			writeString(out, bytecode.functions[i]);
+			out.writeInt(bytecode.arities[i]);
+		}
+
+		out.flush();
+		return buffer.toByteArray();
+	}
+
+	private static void writeString(DataOutputStream out, String value)
+	throws IOException
+	{
+		byte[] bytes = value.getBytes(UTF8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+}
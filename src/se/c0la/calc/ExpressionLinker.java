@@ -0,0 +1,183 @@
+package se.c0la.calc;
+
+import java.util.*;
+import java.math.*;
+
+/**
+ * Resolves all names in an expression once, ahead of evaluation.
+ * Variables are assigned slots in a frame and functions are looked up
+ * in the evaluator, so that names that don't exist are reported when
+ * linking rather than halfway through an evaluation.
+ */
+public class ExpressionLinker
+{
+	private Evaluator evaluator;
+
+	public ExpressionLinker(Evaluator evaluator)
+	{
+		this.evaluator = evaluator;
+	}
+
+	/**
+	 * Holds what's needed while linking a single expression.
+	 */
+	private static class Link
+	{
+		private List<String> names;
+		private List<BigDecimal> values;
+		private int slotCount;
+		private Map<ASTNode, LinkedExpression.Node> linked;
+	}
+
+	/**
+	 * Links an expression. The parameters get the first slots of the
+	 * frame, in the order they're given. Any other variable has to be
+	 * defined in the evaluator, and its current value becomes the initial
+	 * value of its slot.
+	 */
+	public LinkedExpression link(ASTNode node, String... parameters)
+	throws EvaluationException
+	{
+		Link link = new Link();
+		link.names = new ArrayList<String>(Arrays.asList(parameters));
+		link.values = new ArrayList<BigDecimal>();
+		for (int i = 0; i < parameters.length; i++) {
+			link.values.add(null);
+		}
+		link.slotCount = node.getSlotCount();
+		link.linked = new IdentityHashMap<ASTNode, LinkedExpression.Node>();
+
+		// All variables are assigned slots first, since the values of
+		// shared DAG nodes are stored after them.
+		resolveVariables(node, link);
+		LinkedExpression.Node root = link(node, link);
+
+		return new LinkedExpression(root,
+			link.names.toArray(new String[link.names.size()]),
+			link.values.toArray(new BigDecimal[link.values.size()]),
+			parameters.length,
+			link.names.size() + link.slotCount);
+	}
+
+	private void resolveVariables(ASTNode node, Link link)
+	throws UndefinedVariableException
+	{
+		if (node == null) {
+			return;
+		}
+
+		Lexeme lexeme = node.getLexeme();
+		if (lexeme.getType() == TokenType.VARIABLE) {
+			String name = lexeme.getValue();
+			if (!link.names.contains(name)) {
+				link.values.add(evaluator.getVariable(name));
+				link.names.add(name);
+			}
+			return;
+		}
+
+		if (node.getArguments() != null) {
+			for (ASTNode argument : node.getArguments()) {
+				resolveVariables(argument, link);
+			}
+			return;
+		}
+
+		resolveVariables(node.getLeft(), link);
+		resolveVariables(node.getRight(), link);
+	}
+
+	private LinkedExpression.Node link(ASTNode node, Link link)
+	throws EvaluationException
+	{
+		// Nodes that are shared in a DAG are linked once, so that they're
+		// still shared in the linked expression.
+		LinkedExpression.Node result = link.linked.get(node);
+		if (result != null) {
+			return result;
+		}
+
+		result = linkNode(node, link);
+
+		int slot = node.getSlot();
+		if (slot >= 0 && slot < link.slotCount) {
+			result = new LinkedExpression.Shared(link.names.size() + slot, result);
+		}
+
+		link.linked.put(node, result);
+		return result;
+	}
+
+	private LinkedExpression.Node linkNode(ASTNode node, Link link)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				try {
+					return new LinkedExpression.Constant(
+						lexeme.getDecimalValue().round(evaluator.getMathContext()));
+				}
+				catch (NumberFormatException e) {
+					throw new EvaluationException("Invalid number specified");
+				}
+			case VARIABLE:
+				return new LinkedExpression.Variable(link.names.indexOf(lexeme.getValue()));
+			case FUNCTION:
+				return linkFunction(node, link);
+		}
+
+		LinkedExpression.Node left = link(node.getLeft(), link);
+		if (node.getRight() == null) {
+			switch (lexeme.getType()) {
+				case PLUS:
+					return left;
+				case MINUS:
+					return new LinkedExpression.Negate(left);
+				default:
+					throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+			}
+		}
+
+		LinkedExpression.Node right = link(node.getRight(), link);
+		switch (lexeme.getType()) {
+			case PLUS:
+			case MINUS:
+			case ASTERIX:
+			case SLASH:
+			case EXPONENT:
+				return new LinkedExpression.Binary(lexeme.getType(), evaluator, left, right);
+			default:
+				throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+		}
+	}
+
+	private LinkedExpression.Node linkFunction(ASTNode node, Link link)
+	throws EvaluationException
+	{
+		String name = node.getLexeme().getValue();
+		ASTNode[] arguments = node.getArguments();
+
+		MathFunction func = null;
+		if (arguments.length == 1) {
+			try {
+				func = evaluator.getFunction(name);
+			}
+			catch (UndefinedFunctionException e) {
+				// Might still be a function with several arguments.
+			}
+		}
+
+		if (func != null) {
+			return new LinkedExpression.Call(func, link(arguments[0], link));
+		}
+
+		MultiArgumentFunction multi = evaluator.getMultiArgumentFunction(name, arguments.length);
+		LinkedExpression.Node[] linked = new LinkedExpression.Node[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			linked[i] = link(arguments[i], link);
+		}
+
+		return new LinkedExpression.CallN(multi, evaluator.getMathContext(), linked);
+	}
+}
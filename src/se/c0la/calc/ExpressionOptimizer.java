@@ -0,0 +1,199 @@
+package se.c0la.calc;
+
+import java.util.*;
+import java.math.*;
+
+/**
+ * Simplifies an AST before it's evaluated repeatedly. Subtrees that don't
+ * depend on any of the free variables are evaluated once and replaced by
+ * a number, and a few identities that never change the result are
+ * applied: x+0, 0+x, x-0, x*1, 1*x, x/1, x^1 and --x.
+ *
+ * Variables that aren't free are treated as constants, and are replaced
+ * by their value in the evaluator at the time of optimization. Calls to
+ * functions are only folded if the function has been registered as pure.
+ * If folding a subtree fails, for instance because of a division by zero,
+ * it's left as it is so that the error is reported when the expression
+ * is evaluated. Folded values become numbers in the tree, so they're
+ * rounded to the precision of the evaluator like any other number.
+ *
+ * The optimizer can work with either a BigDecimal Evaluator or a
+ * DoubleEvaluator, and folds constants using the one it was given.
+ */
+public class ExpressionOptimizer
+{
+	private Evaluator evaluator;
+	private DoubleEvaluator doubleEvaluator;
+
+	public ExpressionOptimizer(Evaluator evaluator)
+	{
+		this.evaluator = evaluator;
+		this.doubleEvaluator = null;
+	}
+
+	public ExpressionOptimizer(DoubleEvaluator doubleEvaluator)
+	{
+		this.evaluator = null;
+		this.doubleEvaluator = doubleEvaluator;
+	}
+
+	public ASTNode optimize(ASTNode node, String... freeVariables)
+	{
+		return optimize(node, new HashSet<String>(Arrays.asList(freeVariables)));
+	}
+
+	public ASTNode optimize(ASTNode node, Set<String> freeVariables)
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				return node;
+			case VARIABLE:
+				if (freeVariables.contains(lexeme.getValue())) {
+					return node;
+				}
+
+				try {
+					if (evaluator != null) {
+						return constant(evaluator.getVariable(lexeme.getValue()).toString());
+					}
+
+					return constant(Double.toString(doubleEvaluator.getVariable(lexeme.getValue())));
+				}
+				catch (UndefinedVariableException e) {
+					return node;
+				}
+			case FUNCTION:
+				ASTNode[] arguments = node.getArguments();
+				ASTNode[] optimized = new ASTNode[arguments.length];
+				boolean constant = true;
+				for (int i = 0; i < arguments.length; i++) {
+					optimized[i] = optimize(arguments[i], freeVariables);
+					constant = constant && isConstant(optimized[i]);
+				}
+
+				ASTNode call = new ASTNode(lexeme, optimized);
+				if (constant && isPureFunction(lexeme.getValue())) {
+					return fold(call);
+				}
+
+				return call;
+		}
+
+		ASTNode left = optimize(node.getLeft(), freeVariables);
+		if (node.getRight() == null) {
+			return optimizeUnary(lexeme, left);
+		}
+
+		ASTNode right = optimize(node.getRight(), freeVariables);
+		if (isConstant(left) && isConstant(right)) {
+			return fold(new ASTNode(lexeme, left, right));
+		}
+
+		switch (lexeme.getType()) {
+			case PLUS:
+				if (isValue(left, BigDecimal.ZERO)) {
+					return right;
+				}
+				if (isValue(right, BigDecimal.ZERO)) {
+					return left;
+				}
+				break;
+			case MINUS:
+				if (isValue(right, BigDecimal.ZERO)) {
+					return left;
+				}
+				break;
+			case ASTERIX:
+				if (isValue(left, BigDecimal.ONE)) {
+					return right;
+				}
+				if (isValue(right, BigDecimal.ONE)) {
+					return left;
+				}
+				break;
+			case SLASH:
+			case EXPONENT:
+				if (isValue(right, BigDecimal.ONE)) {
+					return left;
+				}
+				break;
+		}
+
+		return new ASTNode(lexeme, left, right);
+	}
+
+	private ASTNode optimizeUnary(Lexeme lexeme, ASTNode operand)
+	{
+		if (lexeme.getType() == TokenType.PLUS) {
+			return operand;
+		}
+
+		if (isConstant(operand)) {
+			return fold(new ASTNode(lexeme, operand, null));
+		}
+
+		// Two negations cancel each other out.
+		if (lexeme.getType() == TokenType.MINUS) {
+			Lexeme inner = operand.getLexeme();
+			if (inner.getType() == TokenType.MINUS && operand.getRight() == null) {
+				return operand.getLeft();
+			}
+		}
+
+		return new ASTNode(lexeme, operand, null);
+	}
+
+	private boolean isPureFunction(String name)
+	{
+		if (evaluator != null) {
+			return evaluator.isPureFunction(name);
+		}
+
+		return doubleEvaluator.isPureFunction(name);
+	}
+
+	private ASTNode fold(ASTNode node)
+	{
+		try {
+			if (evaluator != null) {
+				return constant(evaluator.evaluate(node).toString());
+			}
+
+			// Infinity and NaN can't be represented as numbers in the tree.
+			double value = doubleEvaluator.evaluate(node);
+			if (Double.isNaN(value) || Double.isInfinite(value)) {
+				return node;
+			}
+
+			return constant(Double.toString(value));
+		}
+		catch (EvaluationException e) {
+			return node;
+		}
+	}
+
+	private static ASTNode constant(String value)
+	{
+		return new ASTNode(new Lexeme(TokenType.NUMBER, value));
+	}
+
+	private static boolean isConstant(ASTNode node)
+	{
+		return node.getLexeme().getType() == TokenType.NUMBER;
+	}
+
+	private static boolean isValue(ASTNode node, BigDecimal value)
+	{
+		if (!isConstant(node)) {
+			return false;
+		}
+
+		try {
+			return node.getLexeme().getDecimalValue().compareTo(value) == 0;
+		}
+		catch (NumberFormatException e) {
+			return false;
+		}
+	}
+}
@@ -0,0 +1,24 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * Common interface for the parsers, so that they can be used
+ * interchangeably.
+ */
+public interface ExpressionParser
+{
+	public ASTNode parse(List<Lexeme> lexemes)
+	throws ParseErrorException;
+
+	/**
+	 * Prints the lexemes that are parsed, by installing a DebugListener.
+	 */
+	public void setDebug(boolean debug);
+
+	/**
+	 * Installs a listener which is told about every parse, or removes it
+	 * if listener is null.
+	 */
+	public void setListener(ParseListener listener);
+}
@@ -1,7 +1,9 @@
 package se.c0la.calc;
 
+import java.io.*;
 import java.util.*;
 import java.math.*;
+import java.util.concurrent.*;
 import java.awt.image.*;
 import javax.imageio.*;
 import java.awt.Graphics;
@@ -12,6 +14,7 @@ import java.awt.BasicStroke;
 public class FunctionPlotter
 {
 	private Evaluator evaluator;
+	private DoubleEvaluator doubleEvaluator;
 	
 	private int imageWidth, imageHeight;
 	
@@ -20,9 +23,69 @@ public class FunctionPlotter
 	
 	private double scaleX, scaleY;
 
+	private ForkJoinPool pool;
+
+	/**
+	 * The spacing in pixels of the points that adaptive sampling starts
+	 * out with, and the width in pixels of the narrowest segment that it
+	 * will split any further.
+	 */
+	private static final double INITIAL_SPACING = 4.0;
+	private static final double MIN_SEGMENT_WIDTH = 1.0 / 64;
+
+	/**
+	 * The smallest budget for adaptive sampling, which is what it takes to
+	 * sample the two halves of the x range at both ends and the middle.
+	 */
+	private static final int MIN_BUDGET = 5;
+
+	private static final int DEFAULT_STRIP_HEIGHT = 256;
+
+	private static final Color CURVE_COLOR = new Color(100, 100, 255);
+	private static final Color BACKGROUND_COLOR = new Color(255, 255, 255);
+	private static final Color AXIS_COLOR = new Color(0, 0, 0);
+	private static final Color GRID_COLOR = new Color(200, 200, 200);
+
+	/**
+	 * The colors of the curves drawn by plot(List, String), which are
+	 * used in turn.
+	 */
+	private static final Color[] CURVE_COLORS = {
+		CURVE_COLOR,
+		new Color(220, 50, 50),
+		new Color(40, 160, 60),
+		new Color(230, 140, 0),
+		new Color(150, 60, 190),
+		new Color(0, 160, 170),
+		new Color(200, 70, 130),
+		new Color(110, 110, 110)
+	};
+
+	private double tolerance;
+	private int budget;
+	private int evaluationCount;
+
+	private Color[] curveColors;
+	private int stripHeight;
+
 	public FunctionPlotter(Evaluator evaluator)
+	{
+		this(evaluator, null);
+	}
+
+	/**
+	 * Plotting with a DoubleEvaluator evaluates all samples in a single
+	 * batch, which is much faster than evaluating them one at a time.
+	 */
+	public FunctionPlotter(DoubleEvaluator doubleEvaluator)
+	{
+		this(null, doubleEvaluator);
+	}
+
+	private FunctionPlotter(Evaluator evaluator, DoubleEvaluator doubleEvaluator)
 	{
 		this.evaluator = evaluator;
+		this.doubleEvaluator = doubleEvaluator;
 		
 		this.imageWidth = 100;
 		this.imageHeight = 100;
@@ -34,6 +97,15 @@ public class FunctionPlotter
 		
 		this.scaleX = 1.0;
 		this.scaleY = 1.0;
+
+		this.pool = null;
+
+		this.tolerance = 0.0;
+		this.budget = 0;
+		this.evaluationCount = 0;
+
+		this.curveColors = CURVE_COLORS;
+		this.stripHeight = DEFAULT_STRIP_HEIGHT;
 	}
 	
 	public void setImageSize(int width, int height)
@@ -60,6 +132,76 @@ public class FunctionPlotter
 		this.scaleY = scaleY;
 	}
 	
+	/**
+	 * When a pool is set, the x range is split into parts that are
+	 * sampled in parallel on the pool. With no pool, which is the
+	 * default, all samples are taken on the calling thread.
+	 */
+	public void setPool(ForkJoinPool pool)
+	{
+		this.pool = pool;
+	}
+
+	/**
+	 * Enables adaptive sampling. Rather than evaluating the function once
+	 * for every pixel column, the x range is first sampled sparsely, and
+	 * segments of the curve are split in half wherever the curve deviates
+	 * from a straight line by more than tolerance pixels. Flat stretches
+	 * get few samples, while the area around a singularity or the edge of
+	 * the domain is sampled much more densely than one sample per pixel.
+	 *
+	 * At most budget evaluations are made per plot. When that isn't enough
+	 * to get within the tolerance everywhere, the segments that deviate the
+	 * most are split first. The budget has to be at least MIN_BUDGET. A
+	 * tolerance of zero turns adaptive sampling off.
+	 */
+	public void setAdaptiveSampling(double tolerance, int budget)
+	{
+		if (tolerance > 0 && budget < MIN_BUDGET) {
+			throw new IllegalArgumentException("Invalid budget " + budget + ", at least "
+				+ MIN_BUDGET + " evaluations are needed");
+		}
+
+		this.tolerance = tolerance;
+		this.budget = budget;
+	}
+
+	/**
+	 * Sets the colors of the curves drawn by plot(List, String). When
+	 * there are more curves than colors, the colors are used again.
+	 */
+	public void setCurveColors(Color... colors)
+	{
+		if (colors.length == 0) {
+			throw new IllegalArgumentException("At least one color is needed");
+		}
+
+		this.curveColors = colors.clone();
+	}
+
+	/**
+	 * Sets the number of rows that the plot() methods which write to a
+	 * stream render at a time. The memory they need for the image is
+	 * proportional to the width of the image times the strip height.
+	 */
+	public void setStripHeight(int stripHeight)
+	{
+		if (stripHeight < 1) {
+			throw new IllegalArgumentException("Invalid strip height " + stripHeight);
+		}
+
+		this.stripHeight = stripHeight;
+	}
+
+	/**
+	 * Returns the number of times the function was evaluated by the last
+	 * call to plot() or plotImplicit().
+	 */
+	public int getEvaluationCount()
+	{
+		return evaluationCount;
+	}
+	
 	private int getCoordinateX(double x)
 	{
 		return (int)(imageWidth * (x - lowerBoundX) / (upperBoundX - lowerBoundX));
@@ -69,24 +211,394 @@ public class FunctionPlotter
 	{
 		return (int)(imageHeight - imageHeight * (y - lowerBoundY) / (upperBoundY - lowerBoundY));
 	}
+
+	/**
+	 * The position of x in pixels, with the fraction kept, relative to
+	 * the center of the first pixel column, which is how a PixelCanvas
+	 * counts.
+	 */
+	private double getPositionX(double x)
+	{
+		return imageWidth * (x - lowerBoundX) / (upperBoundX - lowerBoundX) - 0.5;
+	}
+
+	private double getPositionY(double y)
+	{
+		return imageHeight - imageHeight * (y - lowerBoundY) / (upperBoundY - lowerBoundY) - 0.5;
+	}
+
+	/**
+	 * The x value at the left edge of a pixel column.
+	 */
+	private double getValueX(int column)
+	{
+		return lowerBoundX + column * (upperBoundX - lowerBoundX) / imageWidth;
+	}
+
+	/**
+	 * The y value at the top edge of a pixel row.
+	 */
+	private double getValueY(int row)
+	{
+		return upperBoundY - row * (upperBoundY - lowerBoundY) / imageHeight;
+	}
 	
+	/**
+	 * A sampled curve, as positions in pixels. Points where the function
+	 * couldn't be evaluated are NaN.
+	 */
+	private static class Curve
+	{
+		private double[] xs, ys;
+		private int rgb;
+	}
+
 	public BufferedImage plot(ASTNode expression, String var)
 	throws Exception
 	{
-		double step = (upperBoundX - lowerBoundX) / (imageWidth);
-		
+		evaluationCount = 0;
+		return render(Collections.singletonList(sampleCurve(expression, var, CURVE_COLOR)));
+	}
+
+	/**
+	 * Plots several expressions in one image, each in its own color.
+	 * All of them are sampled at the same points, one for every pixel
+	 * column, so the points are only computed once, and the image is only
+	 * cleared and given axes once. Adaptive sampling isn't used here,
+	 * since it would pick different points for every curve.
+	 */
+	public BufferedImage plot(List<ASTNode> expressions, String var)
+	throws Exception
+	{
+		evaluationCount = 0;
+		return render(sampleCurves(expressions, var));
+	}
+
+	/**
+	 * Writes the plot to out as a PNG image, which is rendered one strip
+	 * at a time, so that the whole image is never in memory. This makes
+	 * it possible to plot images that are far too large for a
+	 * BufferedImage.
+	 */
+	public void plot(ASTNode expression, String var, OutputStream out)
+	throws Exception
+	{
+		evaluationCount = 0;
+		render(Collections.singletonList(sampleCurve(expression, var, CURVE_COLOR)), out);
+	}
+
+	/**
+	 * Writes a plot of several expressions to out as a PNG image, like
+	 * plot(ASTNode, String, OutputStream).
+	 */
+	public void plot(List<ASTNode> expressions, String var, OutputStream out)
+	throws Exception
+	{
+		evaluationCount = 0;
+		render(sampleCurves(expressions, var), out);
+	}
+
+	private Curve sampleCurve(ASTNode expression, String var, Color color)
+	throws EvaluationException
+	{
+		expression = prepare(expression, var);
+
+		double[] xs, ys;
+		if (tolerance > 0.0) {
+			List<Segment> segments = sampleAdaptive(expression, var);
+
+			xs = new double[2 * segments.size() + 1];
+			ys = new double[xs.length];
+			for (int i = 0; i < segments.size(); i++) {
+				Segment segment = segments.get(i);
+				xs[2 * i] = segment.x0;
+				ys[2 * i] = segment.y0;
+				xs[2 * i + 1] = segment.xm;
+				ys[2 * i + 1] = segment.ym;
+			}
+
+			Segment last = segments.get(segments.size() - 1);
+			xs[xs.length - 1] = last.x1;
+			ys[ys.length - 1] = last.y1;
+		} else {
+			xs = getSamplePoints();
+			ys = sample(expression, var, xs);
+		}
+
+		return createCurve(xs, ys, color);
+	}
+
+	/**
+	 * Samples the expressions at the same points, and gives them the
+	 * colors in turn.
+	 */
+	private List<Curve> sampleCurves(List<ASTNode> expressions, String var)
+	throws EvaluationException
+	{
+		double[] xs = getSamplePoints();
+
+		List<Curve> curves = new ArrayList<Curve>(expressions.size());
+		for (int i = 0; i < expressions.size(); i++) {
+			double[] ys = sample(prepare(expressions.get(i), var), var, xs);
+			curves.add(createCurve(xs, ys, curveColors[i % curveColors.length]));
+		}
+
+		return curves;
+	}
+
+	private Curve createCurve(double[] xs, double[] ys, Color color)
+	{
+		Curve curve = new Curve();
+		curve.xs = new double[xs.length];
+		curve.ys = new double[ys.length];
+		curve.rgb = color.getRGB() & 0xffffff;
+
+		for (int i = 0; i < xs.length; i++) {
+			double y = ys[i];
+			if (Double.isNaN(y) || Double.isInfinite(y)) {
+				curve.xs[i] = Double.NaN;
+				curve.ys[i] = Double.NaN;
+				continue;
+			}
+
+			curve.xs[i] = getPositionX(xs[i]);
+			curve.ys[i] = getPositionY(y);
+		}
+
+		return curve;
+	}
+
+	private BufferedImage render(List<Curve> curves)
+	{
+		BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+		drawAxes(image, 0);
+
+		PixelCanvas canvas = new PixelCanvas(image);
+		for (Curve curve : curves) {
+			drawCurve(canvas, curve);
+		}
+
+		return image;
+	}
+
+	/**
+	 * Renders the image in strips of stripHeight rows. Each strip is drawn
+	 * in full, with the axes and every curve, into the same buffer, and
+	 * passed on to the encoder before the next one is drawn.
+	 */
+	private void render(List<Curve> curves, OutputStream out)
+	throws IOException
+	{
+		int height = Math.min(stripHeight, imageHeight);
+		BufferedImage strip = new BufferedImage(imageWidth, height, BufferedImage.TYPE_INT_RGB);
+		int[] pixels = ((DataBufferInt)strip.getRaster().getDataBuffer()).getData();
+
+		PngEncoder encoder = new PngEncoder(out, imageWidth, imageHeight);
+		for (int top = 0; top < imageHeight; top += height) {
+			drawAxes(strip, top);
+
+			PixelCanvas canvas = new PixelCanvas(strip, top);
+			for (Curve curve : curves) {
+				drawCurve(canvas, curve);
+			}
+
+			encoder.writeRows(pixels, 0, imageWidth, Math.min(height, imageHeight - top));
+		}
+
+		encoder.finish();
+	}
+
+	/**
+	 * Draws lines between the points of a curve.
+	 */
+	private void drawCurve(PixelCanvas canvas, Curve curve)
+	{
+		double[] xs = curve.xs;
+		double[] ys = curve.ys;
+
+		int prev = -1;
+		for (int i = 0; i < xs.length; i++) {
+			// Points where the function couldn't be evaluated are skipped.
+			if (Double.isNaN(ys[i])) {
+				continue;
+			}
+			
+			if (prev != -1) {
+				canvas.drawLine(xs[prev], ys[prev], xs[i], ys[i], curve.rgb);
+			}
+			
+			prev = i;
+		}
+	}
+
+	/**
+	 * Plots the curve where the two sides of an equation such as
+	 * x^2 + y^2 = 1 are equal. The lexemes are split at the equal sign,
+	 * and each side is parsed on its own.
+	 */
+	public BufferedImage plotImplicit(List<Lexeme> equation, ExpressionParser parser, String varX, String varY)
+	throws Exception
+	{
+		int split = -1;
+		for (int i = 0; i < equation.size(); i++) {
+			if (equation.get(i).getType() == TokenType.EQUALSIGN) {
+				if (split != -1) {
+					throw new ParseErrorException("An equation can only have one =");
+				}
+				split = i;
+			}
+		}
+
+		if (split == -1) {
+			throw new ParseErrorException("Expected an equation");
+		}
+
+		ASTNode left = parser.parse(equation.subList(0, split));
+		ASTNode right = parser.parse(equation.subList(split + 1, equation.size()));
+		return plotImplicit(new ASTNode(new Lexeme(TokenType.MINUS), left, right), varX, varY);
+	}
+
+	/**
+	 * Plots the curve where the expression is zero. The image is split
+	 * into quadrants recursively, and every region where the expression
+	 * can't be zero, according to the IntervalEvaluator, is discarded
+	 * without looking at it any closer. Only the regions the curve passes
+	 * through are split further, so the number of evaluations grows with
+	 * the length of the curve rather than with the number of pixels.
+	 *
+	 * Every pixel that can't be excluded is drawn. Since the intervals
+	 * are wider than the true range of the expression, steep parts of the
+	 * curve may come out thicker than a pixel.
+	 *
+	 * Only the built in functions have interval versions. A function that
+	 * has been added to the evaluator of the plotter could return anything
+	 * as far as the IntervalEvaluator knows, so an expression that uses one
+	 * can't exclude any region. For such an expression, each pixel that is
+	 * left is instead evaluated at its corners by the evaluator of the
+	 * plotter, and only drawn if the sign changes between them. That is
+	 * much slower, since every pixel is visited, and it misses places where
+	 * the expression touches zero without changing sign.
+	 */
+	public BufferedImage plotImplicit(ASTNode expression, String varX, String varY)
+	throws Exception
+	{
+		evaluationCount = 0;
+		expression = prepare(expression, varX, varY);
+
 		BufferedImage image = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_INT_RGB);
+		drawAxes(image, 0);
+
+		IntervalEvaluator intervals = new IntervalEvaluator();
+		String[] names = { varX, varY };
+		Interval[] values = new Interval[2];
+		plotRegion(intervals, !intervals.supports(expression), expression, names, values, image,
+			0, 0, imageWidth, imageHeight);
+
+		return image;
+	}
+
+	/**
+	 * Plots the pixels of the region from column x0 and row y0, inclusive,
+	 * to column x1 and row y1, exclusive. If pointTest is set, a pixel that
+	 * the intervals can't exclude is only drawn if the expression changes
+	 * sign within it.
+	 */
+	private void plotRegion(IntervalEvaluator intervals, boolean pointTest, ASTNode expression,
+		String[] names, Interval[] values, BufferedImage image, int x0, int y0, int x1, int y1)
+	throws EvaluationException
+	{
+		values[0] = Interval.of(Math.nextDown(getValueX(x0)), Math.nextUp(getValueX(x1)));
+		values[1] = Interval.of(Math.nextDown(getValueY(y1)), Math.nextUp(getValueY(y0)));
+
+		evaluationCount++;
+		Interval result = intervals.evaluate(expression, names, values);
+		if (!result.contains(0.0)) {
+			return;
+		}
+
+		if (x1 - x0 == 1 && y1 - y0 == 1) {
+			if (!pointTest || changesSign(expression, names, x0, y0)) {
+				image.setRGB(x0, y0, CURVE_COLOR.getRGB());
+			}
+			return;
+		}
+
+		int xm = x1 - x0 > 1 ? (x0 + x1) >>> 1 : x1;
+		int ym = y1 - y0 > 1 ? (y0 + y1) >>> 1 : y1;
+
+		plotRegion(intervals, pointTest, expression, names, values, image, x0, y0, xm, ym);
+		if (xm < x1) {
+			plotRegion(intervals, pointTest, expression, names, values, image, xm, y0, x1, ym);
+		}
+		if (ym < y1) {
+			plotRegion(intervals, pointTest, expression, names, values, image, x0, ym, xm, y1);
+		}
+		if (xm < x1 && ym < y1) {
+			plotRegion(intervals, pointTest, expression, names, values, image, xm, ym, x1, y1);
+		}
+	}
+
+	/**
+	 * Returns whether the expression is zero at one of the corners of the
+	 * pixel, or is positive at one corner and negative at another. Corners
+	 * where the expression isn't defined are ignored.
+	 */
+	private boolean changesSign(ASTNode expression, String[] names, int column, int row)
+	{
+		boolean negative = false;
+		boolean positive = false;
+		for (int corner = 0; corner < 4; corner++) {
+			double value = evaluatePoint(expression, names,
+				getValueX(column + (corner & 1)), getValueY(row + (corner >> 1)));
+			if (value == 0.0) {
+				return true;
+			}
+
+			negative |= value < 0.0;
+			positive |= value > 0.0;
+		}
+
+		return negative && positive;
+	}
+
+	/**
+	 * Evaluates the prepared expression with the two variables in names
+	 * bound to x and y. Returns NaN where evaluation fails.
+	 */
+	private double evaluatePoint(ASTNode expression, String[] names, double x, double y)
+	{
+		evaluationCount++;
+		try {
+			if (doubleEvaluator != null) {
+				return doubleEvaluator.evaluate(expression, names, new double[] { x, y });
+			}
+
+			Bindings bindings = new Bindings(2)
+				.set(names[0], new BigDecimal(x))
+				.set(names[1], new BigDecimal(y));
+			return evaluator.evaluate(expression, bindings).doubleValue();
+		}
+		catch (EvaluationException e) {
+			return Double.NaN;
+		}
+	}
+
+	/**
+	 * Clears the image and draws the axes and the grid. The image may be a
+	 * strip of the plot, starting at row top.
+	 */
+	private void drawAxes(BufferedImage image, int top)
+	{
 		Graphics2D g = (Graphics2D)image.getGraphics();
-		g.setBackground(new Color(255, 255, 255));
+		g.translate(0, -top);
+		g.setBackground(BACKGROUND_COLOR);
 		g.clearRect(0, 0, imageWidth, imageHeight);
-		g.setColor(new Color(0, 0, 0));
+		g.setColor(AXIS_COLOR);
 		g.setStroke(new BasicStroke(2.0f));
 		
 		int origoX = getCoordinateX(0.0);
 		int origoY = getCoordinateY(0.0);
 		
-		System.out.println(origoX + " " + origoY);
-		
 		g.drawLine(0, origoY, imageWidth, origoY);
 		g.drawLine(origoX, 0, origoX, imageHeight);
 		
@@ -94,53 +606,313 @@ public class FunctionPlotter
 		
 		for (double xMarker = Math.floor(lowerBoundX); xMarker < upperBoundX; xMarker += scaleX) {
 			int xMarkerPos = getCoordinateX(xMarker);
-			g.setColor(new Color(200, 200, 200));
+			g.setColor(GRID_COLOR);
 			g.drawLine(xMarkerPos, 0, xMarkerPos, imageHeight);
-			g.setColor(new Color(0, 0, 0));
+			g.setColor(AXIS_COLOR);
 			g.drawLine(xMarkerPos, origoY - 10, xMarkerPos, origoY + 10);
 			g.drawString(String.format("%.2f", xMarker), xMarkerPos + 5, origoY + 25);
 		}
 		
-		for (double yMarker = Math.floor(lowerBoundX); yMarker < upperBoundY; yMarker += scaleY) {
+		for (double yMarker = Math.floor(lowerBoundY); yMarker < upperBoundY; yMarker += scaleY) {
 			int yMarkerPos = getCoordinateY(yMarker);
-			g.setColor(new Color(200, 200, 200));
+			g.setColor(GRID_COLOR);
 			g.drawLine(0, yMarkerPos, imageWidth, yMarkerPos);
-			g.setColor(new Color(0, 0, 0));
+			g.setColor(AXIS_COLOR);
 			g.drawLine(origoX - 10, yMarkerPos, origoX + 10, yMarkerPos);
 			g.drawString(String.format("%.2f", yMarker), origoX + 20, yMarkerPos - 5);
 		}
 		
-		g.setColor(new Color(100, 100, 255));
-		
+		g.dispose();
+	}
+
+	/**
+	 * Returns the x values to sample, one for every pixel column.
+	 */
+	private double[] getSamplePoints()
+	{
+		double step = (upperBoundX - lowerBoundX) / (imageWidth);
+
+		int count = 0;
+		for (double x = lowerBoundX; x < upperBoundX; x += step) {
+			count++;
+		}
+
+		double[] xs = new double[count];
 		double x = lowerBoundX;
-		int prevX = -1, prevY = -1;
-		while (x < upperBoundX) {
-			evaluator.addVariable(var, new BigDecimal(x));
-			
-			double y;
+		for (int i = 0; i < count; i++) {
+			xs[i] = x;
+			x += step;
+		}
+
+		return xs;
+	}
+
+	/**
+	 * A piece of the curve, from x0 to x1, which has also been evaluated
+	 * at its midpoint xm.
+	 */
+	private static class Segment
+	{
+		private double x0, y0;
+		private double xm, ym;
+		private double x1, y1;
+
+		private double deviation;
+		private int split;
+
+		public Segment(double x0, double y0, double xm, double ym, double x1, double y1)
+		{
+			this.x0 = x0;
+			this.y0 = y0;
+			this.xm = xm;
+			this.ym = ym;
+			this.x1 = x1;
+			this.y1 = y1;
+			this.split = -1;
+		}
+	}
+
+	private static final Comparator<Segment> BY_DEVIATION = new Comparator<Segment>() {
+		public int compare(Segment a, Segment b)
+		{
+			return Double.compare(b.deviation, a.deviation);
+		}
+	};
+
+	/**
+	 * Splits segments in rounds. Every round, the midpoints of the new
+	 * segments are evaluated as a single batch, which keeps the benefits
+	 * of batch and parallel evaluation.
+	 */
+	private List<Segment> sampleAdaptive(ASTNode expression, String var)
+	throws EvaluationException
+	{
+		double pixelWidth = (upperBoundX - lowerBoundX) / imageWidth;
+
+		// The initial samples count towards the budget as well, and there
+		// are always at least two segments, of three points each.
+		int count = (int)Math.ceil(imageWidth / INITIAL_SPACING);
+		count = Math.max(2, Math.min(count, (budget - 1) / 2));
+		double[] xs = new double[2 * count + 1];
+		for (int i = 0; i < xs.length; i++) {
+			xs[i] = lowerBoundX + (upperBoundX - lowerBoundX) * i / (xs.length - 1);
+		}
+		double[] ys = sample(expression, var, xs);
+
+		List<Segment> segments = new ArrayList<Segment>();
+		for (int i = 0; i < count; i++) {
+			segments.add(createSegment(xs[2 * i], ys[2 * i], xs[2 * i + 1], ys[2 * i + 1],
+				xs[2 * i + 2], ys[2 * i + 2]));
+		}
+
+		while (budget - evaluationCount >= 2) {
+			List<Segment> split = new ArrayList<Segment>();
+			for (Segment segment : segments) {
+				if (segment.deviation > tolerance && segment.x1 - segment.x0 > MIN_SEGMENT_WIDTH * pixelWidth) {
+					split.add(segment);
+				}
+			}
+
+			if (split.isEmpty()) {
+				break;
+			}
+
+			// Splitting a segment takes two evaluations, one for the
+			// midpoint of each half.
+			int available = (budget - evaluationCount) / 2;
+			if (split.size() > available) {
+				Collections.sort(split, BY_DEVIATION);
+				split = split.subList(0, available);
+			}
+
+			double[] midpoints = new double[2 * split.size()];
+			for (int i = 0; i < split.size(); i++) {
+				Segment segment = split.get(i);
+				segment.split = i;
+				midpoints[2 * i] = (segment.x0 + segment.xm) / 2;
+				midpoints[2 * i + 1] = (segment.xm + segment.x1) / 2;
+			}
+			double[] values = sample(expression, var, midpoints);
+
+			List<Segment> next = new ArrayList<Segment>(segments.size() + split.size());
+			for (Segment segment : segments) {
+				int i = segment.split;
+				if (i < 0) {
+					next.add(segment);
+					continue;
+				}
+
+				next.add(createSegment(segment.x0, segment.y0, midpoints[2 * i], values[2 * i],
+					segment.xm, segment.ym));
+				next.add(createSegment(segment.xm, segment.ym, midpoints[2 * i + 1], values[2 * i + 1],
+					segment.x1, segment.y1));
+			}
+			segments = next;
+		}
+
+		return segments;
+	}
+
+	private Segment createSegment(double x0, double y0, double xm, double ym, double x1, double y1)
+	{
+		Segment segment = new Segment(x0, y0, xm, ym, x1, y1);
+		segment.deviation = getDeviation(y0, ym, y1);
+		return segment;
+	}
+
+	/**
+	 * Returns the vertical distance in pixels between the midpoint of a
+	 * segment and the straight line between its end points. Since the
+	 * midpoint is halfway between the end points, this is proportional to
+	 * the change in slope between the two halves of the segment.
+	 *
+	 * A segment where the function is defined at some of the points but
+	 * not at the others contains the edge of the domain or a singularity,
+	 * and is always split further. Segments that lie entirely above or
+	 * below the image aren't visible, and are never split.
+	 */
+	private double getDeviation(double y0, double ym, double y1)
+	{
+		boolean finite0 = !Double.isNaN(y0) && !Double.isInfinite(y0);
+		boolean finiteM = !Double.isNaN(ym) && !Double.isInfinite(ym);
+		boolean finite1 = !Double.isNaN(y1) && !Double.isInfinite(y1);
+		if (!finite0 && !finiteM && !finite1) {
+			return 0.0;
+		}
+		if (!finite0 || !finiteM || !finite1) {
+			return Double.POSITIVE_INFINITY;
+		}
+
+		if ((y0 > upperBoundY && ym > upperBoundY && y1 > upperBoundY) ||
+			(y0 < lowerBoundY && ym < lowerBoundY && y1 < lowerBoundY)) {
+			return 0.0;
+		}
+
+		double pixelHeight = (upperBoundY - lowerBoundY) / imageHeight;
+		return Math.abs(ym - (y0 + y1) / 2) / pixelHeight;
+	}
+
+	/**
+	 * Simplifies the expression for sampling. Everything but the plotted
+	 * variables stays the same for all samples, and is folded into
+	 * constants.
+	 */
+	private ASTNode prepare(ASTNode expression, String... vars)
+	{
+		if (doubleEvaluator != null) {
+			expression = new ExpressionOptimizer(doubleEvaluator).optimize(expression, vars);
+		} else {
+			expression = new ExpressionOptimizer(evaluator).optimize(expression, vars);
+		}
+
+		return new SubexpressionEliminator().eliminate(expression);
+	}
+
+	/**
+	 * Evaluates the prepared expression at each of the points in xs.
+	 * Points where evaluation fails are reported as NaN.
+	 */
+	private double[] sample(ASTNode expression, String var, double[] xs)
+	throws EvaluationException
+	{
+		evaluationCount += xs.length;
+
+		double[] ys = new double[xs.length];
+		if (pool == null) {
+			sample(expression, var, xs, ys, 0, xs.length);
+			return ys;
+		}
+
+		try {
+			pool.invoke(new SampleTask(expression, var, xs, ys, 0, xs.length));
+		}
+		catch (SampleException e) {
+			throw e.getCause();
+		}
+
+		return ys;
+	}
+
+	/**
+	 * Evaluates the points in xs between from and to. The variable is
+	 * passed along with each evaluation rather than set in the evaluator,
+	 * which is what makes it safe to call this from several threads.
+	 */
+	private void sample(ASTNode expression, String var, double[] xs, double[] ys, int from, int to)
+	throws EvaluationException
+	{
+		if (doubleEvaluator != null) {
+			doubleEvaluator.evaluateBatch(expression, var, xs, ys, from, to);
+			return;
+		}
+
+		for (int i = from; i < to; i++) {
 			try {
-				y = evaluator.evaluate(expression).doubleValue();
+				ys[i] = evaluator.evaluate(expression, var, new BigDecimal(xs[i])).doubleValue();
 			}
 			catch (EvaluationException e) {
-				x += step;
-				continue;
+				ys[i] = Double.NaN;
 			}
-			
-			int xPos = getCoordinateX(x);
-			int yPos = getCoordinateY(y);
-			
-			//System.out.println(xPos + " " + yPos);
-			
-			if (prevX != -1 && prevY != -1) {
-				g.drawLine(prevX, prevY, xPos, yPos);
+		}
+	}
+
+	/**
+	 * Carries an EvaluationException out of a SampleTask.
+	 */
+	private static class SampleException extends RuntimeException
+	{
+		public SampleException(EvaluationException cause)
+		{
+			super(cause);
+		}
+
+		public EvaluationException getCause()
+		{
+			return (EvaluationException)super.getCause();
+		}
+	}
+
+	/**
+	 * Splits the range of points in half until it's small enough to be
+	 * sampled directly. Each task writes to its own part of ys, so the
+	 * results end up in order without any merging.
+	 */
+	private class SampleTask extends RecursiveAction
+	{
+		private ASTNode expression;
+		private String var;
+		private double[] xs, ys;
+		private int from, to;
+
+		public SampleTask(ASTNode expression, String var, double[] xs, double[] ys, int from, int to)
+		{
+			this.expression = expression;
+			this.var = var;
+			this.xs = xs;
+			this.ys = ys;
+			this.from = from;
+			this.to = to;
+		}
+
+		protected void compute()
+		{
+			// Batches of doubles are cheap per point, so they're split
+			// into larger parts than BigDecimal evaluations.
+			int threshold = doubleEvaluator != null ? 1024 : 32;
+			if (to - from <= threshold) {
+				try {
+					sample(expression, var, xs, ys, from, to);
+				}
+				catch (EvaluationException e) {
+					throw new SampleException(e);
+				}
+				return;
 			}
-			
-			prevX = xPos;
-			prevY = yPos;
-			x += step;
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new SampleTask(expression, var, xs, ys, from, middle),
+				new SampleTask(expression, var, xs, ys, middle, to));
 		}
-		
-		return image;
 	}
 }
 
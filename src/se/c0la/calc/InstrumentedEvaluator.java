@@ -0,0 +1,86 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * An Evaluator that records how long each evaluation takes, the
+ * exceptions it throws and the functions it calls in a Metrics. A frozen
+ * copy records into the same Metrics as the evaluator it was made from.
+ *
+ * Only evaluations of an AST are recorded. Expressions that have been
+ * linked or compiled don't go through the evaluator when they're run.
+ */
+public class InstrumentedEvaluator extends Evaluator
+{
+	private final Metrics metrics;
+
+	public InstrumentedEvaluator(Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	private InstrumentedEvaluator(InstrumentedEvaluator source)
+	{
+		super(source);
+
+		this.metrics = source.metrics;
+	}
+
+	public Metrics getMetrics()
+	{
+		return metrics;
+	}
+
+	public Evaluator freeze()
+	{
+		if (isFrozen()) {
+			return this;
+		}
+
+		return new InstrumentedEvaluator(this);
+	}
+
+	public BigDecimal evaluate(ASTNode node)
+	throws EvaluationException
+	{
+		long start = System.nanoTime();
+		try {
+			return super.evaluate(node);
+		}
+		catch (EvaluationException e) {
+			metrics.countException(e);
+			throw e;
+		}
+		finally {
+			metrics.recordEvaluation(System.nanoTime() - start);
+		}
+	}
+
+	public BigDecimal evaluate(ASTNode node, Bindings bindings)
+	throws EvaluationException
+	{
+		long start = System.nanoTime();
+		try {
+			return super.evaluate(node, bindings);
+		}
+		catch (EvaluationException e) {
+			metrics.countException(e);
+			throw e;
+		}
+		finally {
+			metrics.recordEvaluation(System.nanoTime() - start);
+		}
+	}
+
+	protected BigDecimal call(String name, MathFunction func, BigDecimal arg)
+	{
+		metrics.countCall(name);
+		return func.apply(arg);
+	}
+
+	protected BigDecimal call(String name, MultiArgumentFunction func, BigDecimal[] args)
+	{
+		metrics.countCall(name);
+		return super.call(name, func, args);
+	}
+}
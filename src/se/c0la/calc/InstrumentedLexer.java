@@ -0,0 +1,33 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * A Lexer that records how long tokenizing takes, and how often it
+ * fails, in a Metrics.
+ */
+public class InstrumentedLexer extends Lexer
+{
+	private final Metrics metrics;
+
+	public InstrumentedLexer(Metrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	public List<Lexeme> tokenize(CharSequence data)
+	throws UnknownTokenException
+	{
+		long start = System.nanoTime();
+		try {
+			return super.tokenize(data);
+		}
+		catch (UnknownTokenException e) {
+			metrics.countException(e);
+			throw e;
+		}
+		finally {
+			metrics.recordLexing(System.nanoTime() - start);
+		}
+	}
+}
@@ -0,0 +1,45 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * Wraps either parser, and records how long parsing takes, and how often
+ * it fails, in a Metrics.
+ */
+public class InstrumentedParser implements ExpressionParser
+{
+	private final ExpressionParser parser;
+	private final Metrics metrics;
+
+	public InstrumentedParser(ExpressionParser parser, Metrics metrics)
+	{
+		this.parser = parser;
+		this.metrics = metrics;
+	}
+
+	public ASTNode parse(List<Lexeme> lexemes)
+	throws ParseErrorException
+	{
+		long start = System.nanoTime();
+		try {
+			return parser.parse(lexemes);
+		}
+		catch (ParseErrorException e) {
+			metrics.countException(e);
+			throw e;
+		}
+		finally {
+			metrics.recordParsing(System.nanoTime() - start);
+		}
+	}
+
+	public void setDebug(boolean debug)
+	{
+		parser.setDebug(debug);
+	}
+
+	public void setListener(ParseListener listener)
+	{
+		parser.setListener(listener);
+	}
+}
@@ -0,0 +1,424 @@
+package se.c0la.calc;
+
+/**
+ * A closed range of real numbers, used by the IntervalEvaluator. Every
+ * operation returns an interval which is guaranteed to contain the result
+ * of the operation for any numbers within its operands. Bounds are rounded
+ * outwards, so the guarantee holds in spite of floating point rounding.
+ *
+ * Parts of an operand that are outside the domain of an operation are
+ * ignored, so sqrt([-4, 4]) is [0, 2]. An operand entirely outside the
+ * domain gives the empty interval.
+ */
+public final class Interval
+{
+	public static final Interval EMPTY = new Interval(Double.NaN, Double.NaN);
+	public static final Interval ENTIRE = new Interval(Double.NEGATIVE_INFINITY, Double.POSITIVE_INFINITY);
+
+	private static final Interval UNIT = new Interval(-1.0, 1.0);
+	private static final Interval ONE = new Interval(1.0, 1.0);
+
+	private static final double TWO_PI = 2 * Math.PI;
+	private static final double HALF_PI = Math.PI / 2;
+
+	private final double lo;
+	private final double hi;
+
+	private Interval(double lo, double hi)
+	{
+		this.lo = lo;
+		this.hi = hi;
+	}
+
+	/**
+	 * Returns the interval from lo to hi, exactly as given.
+	 */
+	public static Interval of(double lo, double hi)
+	{
+		if (Double.isNaN(lo) || Double.isNaN(hi) || lo > hi) {
+			throw new IllegalArgumentException("Invalid interval [" + lo + ", " + hi + "]");
+		}
+
+		return new Interval(lo, hi);
+	}
+
+	/**
+	 * Returns the smallest interval that is certain to contain value, which
+	 * is only correct to within one unit in the last place.
+	 */
+	public static Interval around(double value)
+	{
+		return outward(value, value);
+	}
+
+	/**
+	 * Creates an interval from bounds that may have been rounded the wrong
+	 * way, by widening it by one unit in the last place. A bound that is
+	 * NaN, such as the result of infinity minus infinity, is unbounded.
+	 */
+	private static Interval outward(double lo, double hi)
+	{
+		lo = Double.isNaN(lo) ? Double.NEGATIVE_INFINITY : Math.nextDown(lo);
+		hi = Double.isNaN(hi) ? Double.POSITIVE_INFINITY : Math.nextUp(hi);
+		return new Interval(lo, hi);
+	}
+
+	public double getLower() { return lo; }
+	public double getUpper() { return hi; }
+
+	public boolean isEmpty()
+	{
+		return Double.isNaN(lo);
+	}
+
+	public boolean contains(double value)
+	{
+		return lo <= value && value <= hi;
+	}
+
+	public Interval negate()
+	{
+		if (isEmpty()) {
+			return EMPTY;
+		}
+
+		return new Interval(-hi, -lo);
+	}
+
+	public Interval add(Interval other)
+	{
+		if (isEmpty() || other.isEmpty()) {
+			return EMPTY;
+		}
+
+		return outward(lo + other.lo, hi + other.hi);
+	}
+
+	public Interval subtract(Interval other)
+	{
+		if (isEmpty() || other.isEmpty()) {
+			return EMPTY;
+		}
+
+		return outward(lo - other.hi, hi - other.lo);
+	}
+
+	public Interval multiply(Interval other)
+	{
+		if (isEmpty() || other.isEmpty()) {
+			return EMPTY;
+		}
+
+		double a = product(lo, other.lo);
+		double b = product(lo, other.hi);
+		double c = product(hi, other.lo);
+		double d = product(hi, other.hi);
+		return outward(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+	}
+
+	/**
+	 * Zero times infinity is zero for the bounds of an interval, since
+	 * the zero is exact while the infinity stands for a large number.
+	 */
+	private static double product(double a, double b)
+	{
+		if (a == 0.0 || b == 0.0) {
+			return 0.0;
+		}
+
+		return a * b;
+	}
+
+	/**
+	 * Division by an interval that contains zero gives an unbounded
+	 * result, and division by exactly zero gives the empty interval.
+	 */
+	public Interval divide(Interval other)
+	{
+		if (isEmpty() || other.isEmpty()) {
+			return EMPTY;
+		}
+
+		if (other.lo == 0.0 && other.hi == 0.0) {
+			return EMPTY;
+		}
+
+		if (other.lo < 0.0 && other.hi > 0.0) {
+			return ENTIRE;
+		}
+
+		if (other.lo == 0.0) {
+			return multiply(new Interval(Math.nextDown(1.0 / other.hi), Double.POSITIVE_INFINITY));
+		}
+
+		if (other.hi == 0.0) {
+			return multiply(new Interval(Double.NEGATIVE_INFINITY, Math.nextUp(1.0 / other.lo)));
+		}
+
+		double a = lo / other.lo;
+		double b = lo / other.hi;
+		double c = hi / other.lo;
+		double d = hi / other.hi;
+		return outward(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+	}
+
+	/**
+	 * Raises the interval to a power. Integer exponents are handled for
+	 * negative bases as well, while any other exponent is only defined for
+	 * the part of the base that is at least zero.
+	 */
+	public Interval pow(Interval exponent)
+	{
+		if (isEmpty() || exponent.isEmpty()) {
+			return EMPTY;
+		}
+
+		double n = exponent.lo;
+		if (n == exponent.hi && n == Math.rint(n) && Math.abs(n) <= Integer.MAX_VALUE) {
+			return pow((int)n);
+		}
+
+		if (hi < 0.0) {
+			return EMPTY;
+		}
+
+		// For a base of at least zero, x^y is monotonic in both x and y,
+		// so the bounds are found at the corners.
+		double base = Math.max(lo, 0.0);
+		double a = Math.pow(base, exponent.lo);
+		double b = Math.pow(base, exponent.hi);
+		double c = Math.pow(hi, exponent.lo);
+		double d = Math.pow(hi, exponent.hi);
+		return outward(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+	}
+
+	private Interval pow(int n)
+	{
+		if (n == 0) {
+			return ONE;
+		}
+
+		if (n < 0) {
+			return ONE.divide(pow(-n));
+		}
+
+		if (n % 2 == 1 || lo >= 0.0) {
+			return outward(Math.pow(lo, n), Math.pow(hi, n));
+		}
+
+		if (hi <= 0.0) {
+			return outward(Math.pow(hi, n), Math.pow(lo, n));
+		}
+
+		// An even power of an interval that contains zero.
+		return outward(0.0, Math.pow(Math.max(-lo, hi), n)).atLeast(0.0);
+	}
+
+	/**
+	 * Cuts off the part of the interval below min, which is used where
+	 * widening the bounds would cross a bound that is known to be exact.
+	 */
+	private Interval atLeast(double min)
+	{
+		if (isEmpty() || hi < min) {
+			return EMPTY;
+		}
+
+		return lo >= min ? this : new Interval(min, hi);
+	}
+
+	private Interval within(double min, double max)
+	{
+		if (isEmpty() || hi < min || lo > max) {
+			return EMPTY;
+		}
+
+		if (lo >= min && hi <= max) {
+			return this;
+		}
+
+		return new Interval(Math.max(lo, min), Math.min(hi, max));
+	}
+
+	public Interval sqrt()
+	{
+		Interval x = atLeast(0.0);
+		if (x.isEmpty()) {
+			return EMPTY;
+		}
+
+		return outward(Math.sqrt(x.lo), Math.sqrt(x.hi)).atLeast(0.0);
+	}
+
+	public Interval ln()
+	{
+		if (isEmpty() || hi <= 0.0) {
+			return EMPTY;
+		}
+
+		return outward(Math.log(Math.max(lo, 0.0)), Math.log(hi));
+	}
+
+	public Interval log10()
+	{
+		if (isEmpty() || hi <= 0.0) {
+			return EMPTY;
+		}
+
+		return outward(Math.log(Math.max(lo, 0.0)) / Math.log(10.0), Math.log(hi) / Math.log(10.0));
+	}
+
+	public Interval sin()
+	{
+		// sin x = cos(x - pi/2), with the maximum at pi/2 and the minimum
+		// at 3pi/2.
+		return periodic(HALF_PI, HALF_PI + Math.PI, true);
+	}
+
+	public Interval cos()
+	{
+		return periodic(0.0, Math.PI, false);
+	}
+
+	/**
+	 * Computes sin or cos, which is the bound of the function at the
+	 * ends of the interval, unless the interval passes a maximum or a
+	 * minimum. Since pi isn't exact, extremes that are very close to the
+	 * ends of the interval are assumed to be inside it.
+	 */
+	private Interval periodic(double maximum, double minimum, boolean sine)
+	{
+		if (isEmpty()) {
+			return EMPTY;
+		}
+
+		if (Double.isInfinite(lo) || Double.isInfinite(hi) || hi - lo >= TWO_PI) {
+			return UNIT;
+		}
+
+		double a = sine ? Math.sin(lo) : Math.cos(lo);
+		double b = sine ? Math.sin(hi) : Math.cos(hi);
+		Interval result = outward(Math.min(a, b), Math.max(a, b));
+
+		double upper = passes(maximum) ? 1.0 : Math.min(result.hi, 1.0);
+		double lower = passes(minimum) ? -1.0 : Math.max(result.lo, -1.0);
+		return new Interval(lower, upper);
+	}
+
+	/**
+	 * Returns true if the interval contains offset + 2 k pi for some k.
+	 */
+	private boolean passes(double offset)
+	{
+		double slack = 1e-9 * Math.max(1.0, Math.abs(lo));
+		double k = Math.ceil((lo - slack - offset) / TWO_PI);
+		return offset + k * TWO_PI <= hi + slack;
+	}
+
+	/**
+	 * tan is unbounded on any interval that contains one of its poles,
+	 * and increasing between them.
+	 */
+	public Interval tan()
+	{
+		if (isEmpty()) {
+			return EMPTY;
+		}
+
+		if (Double.isInfinite(lo) || Double.isInfinite(hi) || hi - lo >= Math.PI) {
+			return ENTIRE;
+		}
+
+		double slack = 1e-9 * Math.max(1.0, Math.abs(lo));
+		double k = Math.ceil((lo - slack - HALF_PI) / Math.PI);
+		if (HALF_PI + k * Math.PI <= hi + slack) {
+			return ENTIRE;
+		}
+
+		return outward(Math.tan(lo), Math.tan(hi));
+	}
+
+	public Interval asin()
+	{
+		Interval x = within(-1.0, 1.0);
+		if (x.isEmpty()) {
+			return EMPTY;
+		}
+
+		return outward(Math.asin(x.lo), Math.asin(x.hi));
+	}
+
+	public Interval acos()
+	{
+		Interval x = within(-1.0, 1.0);
+		if (x.isEmpty()) {
+			return EMPTY;
+		}
+
+		return outward(Math.acos(x.hi), Math.acos(x.lo));
+	}
+
+	public Interval atan()
+	{
+		if (isEmpty()) {
+			return EMPTY;
+		}
+
+		return outward(Math.atan(lo), Math.atan(hi));
+	}
+
+	public Interval min(Interval other)
+	{
+		if (isEmpty() || other.isEmpty()) {
+			return EMPTY;
+		}
+
+		return new Interval(Math.min(lo, other.lo), Math.min(hi, other.hi));
+	}
+
+	public Interval max(Interval other)
+	{
+		if (isEmpty() || other.isEmpty()) {
+			return EMPTY;
+		}
+
+		return new Interval(Math.max(lo, other.lo), Math.max(hi, other.hi));
+	}
+
+	public Interval hypot(Interval other)
+	{
+		return pow(2).add(other.pow(2)).sqrt();
+	}
+
+	/**
+	 * atan2(this, x), where this is the y coordinate. Over a rectangle that
+	 * contains neither the origin nor a part of the negative x axis, the
+	 * angle is at its extremes in the corners. Otherwise, any angle is
+	 * possible.
+	 */
+	public Interval atan2(Interval x)
+	{
+		if (isEmpty() || x.isEmpty()) {
+			return EMPTY;
+		}
+
+		if (lo <= 0.0 && hi >= 0.0 && x.lo <= 0.0) {
+			return outward(-Math.PI, Math.PI);
+		}
+
+		double a = Math.atan2(lo, x.lo);
+		double b = Math.atan2(lo, x.hi);
+		double c = Math.atan2(hi, x.lo);
+		double d = Math.atan2(hi, x.hi);
+		return outward(Math.min(Math.min(a, b), Math.min(c, d)), Math.max(Math.max(a, b), Math.max(c, d)));
+	}
+
+	public String toString()
+	{
+		if (isEmpty()) {
+			return "[]";
+		}
+
+		return "[" + lo + ", " + hi + "]";
+	}
+}
@@ -0,0 +1,286 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * Evaluates expressions over intervals rather than single numbers. The
+ * result is an interval that contains the value of the expression for
+ * every combination of values within the intervals of the variables, so
+ * it can prove that an expression has no zero within a whole region.
+ *
+ * The result is usually wider than the true range of the expression,
+ * since a variable that occurs more than once is treated as if each
+ * occurrence could take a different value. It gets closer to the true
+ * range as the intervals get narrower.
+ *
+ * Functions that have no interval version are assumed to be able to
+ * return any value, which is always correct but never excludes anything.
+ */
+public class IntervalEvaluator
+{
+	private Map<String, Interval> variables;
+	private Map<String, IntervalFunction> functions;
+
+	public IntervalEvaluator()
+	{
+		variables = new HashMap<String, Interval>();
+		functions = new HashMap<String, IntervalFunction>();
+
+		addVariable("pi", Interval.around(Math.PI));
+		addVariable("e", Interval.around(Math.E));
+
+		addFunction("sin", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.sin(); }
+		});
+		addFunction("cos", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.cos(); }
+		});
+		addFunction("tan", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.tan(); }
+		});
+		addFunction("ln", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.ln(); }
+		});
+		addFunction("log", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.ln(); }
+		});
+		addFunction("log10", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.log10(); }
+		});
+		addFunction("sqrt", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.sqrt(); }
+		});
+		addFunction("asin", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.asin(); }
+		});
+		addFunction("acos", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.acos(); }
+		});
+		addFunction("atan", new IntervalFunction() {
+			public Interval apply(Interval arg) { return arg.atan(); }
+		});
+	}
+
+	public void addVariable(String name, Interval value)
+	{
+		variables.put(name, value);
+	}
+
+	public void addFunction(String name, IntervalFunction function)
+	{
+		functions.put(name, function);
+	}
+
+	public Interval getVariable(String name)
+	throws UndefinedVariableException
+	{
+		Interval value = variables.get(name);
+		if (value == null) {
+			throw new UndefinedVariableException("Variable " + name + " is undefined.");
+		}
+
+		return value;
+	}
+
+	/**
+	 * Evaluates the expression with each of the variables in names bound
+	 * to the interval at the same position in values. The arrays may be
+	 * reused between calls, which makes it cheap to evaluate the same
+	 * expression over many regions.
+	 */
+	public Interval evaluate(ASTNode node, String[] names, Interval[] values)
+	throws EvaluationException
+	{
+		Interval[] shared = null;
+		if (node.getSlotCount() > 0) {
+			shared = new Interval[node.getSlotCount()];
+		}
+
+		try {
+			return evaluate(node, names, values, shared);
+		}
+		catch (NumberFormatException e) {
+			throw new EvaluationException("Invalid number specified");
+		}
+	}
+
+	public Interval evaluate(ASTNode node)
+	throws EvaluationException
+	{
+		return evaluate(node, new String[0], new Interval[0]);
+	}
+
+	/**
+	 * Returns whether every function in the expression has an interval
+	 * version. If not, the result of the expression is likely to be
+	 * ENTIRE no matter how narrow the intervals of the variables are.
+	 */
+	public boolean supports(ASTNode node)
+	{
+		if (node == null) {
+			return true;
+		}
+
+		if (node.getLexeme().getType() == TokenType.FUNCTION) {
+			ASTNode[] arguments = node.getArguments();
+			if (!hasFunction(node.getLexeme().getValue(), arguments.length)) {
+				return false;
+			}
+
+			for (ASTNode argument : arguments) {
+				if (!supports(argument)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		return supports(node.getLeft()) && supports(node.getRight());
+	}
+
+	/**
+	 * Returns whether there's an interval version of the named function
+	 * with the given number of arguments.
+	 */
+	public boolean hasFunction(String name, int arity)
+	{
+		if (arity == 1 && functions.containsKey(name)) {
+			return true;
+		}
+
+		if (arity >= 1 && (name.equals("min") || name.equals("max"))) {
+			return true;
+		}
+
+		if (arity == 2) {
+			return name.equals("atan2") || name.equals("hypot") || name.equals("pow");
+		}
+
+		return arity == 3 && name.equals("clamp");
+	}
+
+	private Interval evaluate(ASTNode node, String[] names, Interval[] values, Interval[] shared)
+	throws EvaluationException
+	{
+		int slot = node.getSlot();
+		if (shared == null || slot < 0 || slot >= shared.length) {
+			return evaluateNode(node, names, values, shared);
+		}
+
+		Interval result = shared[slot];
+		if (result == null) {
+			result = evaluateNode(node, names, values, shared);
+			shared[slot] = result;
+		}
+
+		return result;
+	}
+
+	private Interval evaluateNode(ASTNode node, String[] names, Interval[] values, Interval[] shared)
+	throws EvaluationException
+	{
+		Lexeme lexeme = node.getLexeme();
+		switch (lexeme.getType()) {
+			case NUMBER:
+				return number(lexeme);
+			case VARIABLE:
+				String name = lexeme.getValue();
+				for (int i = 0; i < names.length; i++) {
+					if (names[i].equals(name)) {
+						return values[i];
+					}
+				}
+				return getVariable(name);
+			case FUNCTION:
+				return evaluateFunction(node, names, values, shared);
+		}
+
+		Interval left = evaluate(node.getLeft(), names, values, shared);
+		if (node.getRight() == null) {
+			switch (lexeme.getType()) {
+				case PLUS:
+					return left;
+				case MINUS:
+					return left.negate();
+				default:
+					throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+			}
+		}
+
+		Interval right = evaluate(node.getRight(), names, values, shared);
+		switch (lexeme.getType()) {
+			case PLUS:
+				return left.add(right);
+			case MINUS:
+				return left.subtract(right);
+			case ASTERIX:
+				return left.multiply(right);
+			case SLASH:
+				return left.divide(right);
+			case EXPONENT:
+				return left.pow(right);
+			default:
+				throw new EvaluationException("Unexpected " + lexeme.getType() + " in expression.");
+		}
+	}
+
+	/**
+	 * Integers are exact as doubles, but most decimal fractions aren't,
+	 * and get an interval around their nearest double.
+	 */
+	private Interval number(Lexeme lexeme)
+	{
+		double value = lexeme.getDoubleValue();
+		if (value == Math.rint(value) && Math.abs(value) < 0x1p53) {
+			return Interval.of(value, value);
+		}
+
+		return Interval.around(value);
+	}
+
+	private Interval evaluateFunction(ASTNode node, String[] names, Interval[] values, Interval[] shared)
+	throws EvaluationException
+	{
+		String name = node.getLexeme().getValue();
+		ASTNode[] arguments = node.getArguments();
+
+		Interval[] args = new Interval[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			args[i] = evaluate(arguments[i], names, values, shared);
+		}
+
+		if (!hasFunction(name, args.length)) {
+			return Interval.ENTIRE;
+		}
+
+		if (args.length == 1) {
+			IntervalFunction func = functions.get(name);
+			if (func != null) {
+				return func.apply(args[0]);
+			}
+		}
+
+		if (name.equals("min") || name.equals("max")) {
+			Interval result = args[0];
+			for (int i = 1; i < args.length; i++) {
+				result = name.equals("min") ? result.min(args[i]) : result.max(args[i]);
+			}
+			return result;
+		}
+
+		if (args.length == 2) {
+			if (name.equals("atan2")) {
+				return args[0].atan2(args[1]);
+			}
+			if (name.equals("hypot")) {
+				return args[0].hypot(args[1]);
+			}
+			if (name.equals("pow")) {
+				return args[0].pow(args[1]);
+			}
+		}
+
+		// Only clamp is left.
+		return args[0].min(args[2]).max(args[1]);
+	}
+}
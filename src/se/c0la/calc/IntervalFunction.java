@@ -0,0 +1,11 @@
+package se.c0la.calc;
+
+/**
+ * The interval version of a function, used by the IntervalEvaluator. The
+ * result must contain the value of the function for every number in the
+ * input interval.
+ */
+public interface IntervalFunction
+{
+	public Interval apply(Interval input);
+}
@@ -0,0 +1,133 @@
+package se.c0la.calc;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Counts latencies in nanoseconds, in buckets whose width grows with the
+ * latency. Each power of two is split into eight buckets, so a recorded
+ * value is known to within an eighth of itself, which is plenty for
+ * percentiles, and the whole range of a long fits in a few hundred
+ * buckets.
+ *
+ * Recording is lock free and can be done by any number of threads.
+ */
+public class LatencyHistogram
+{
+	private static final int SUB_BUCKET_BITS = 3;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int BUCKET_COUNT = (63 - SUB_BUCKET_BITS + 1) * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets;
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong max;
+
+	public LatencyHistogram()
+	{
+		buckets = new AtomicLongArray(BUCKET_COUNT);
+		count = new AtomicLong();
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	public void record(long nanos)
+	{
+		if (nanos < 0) {
+			nanos = 0;
+		}
+
+		buckets.incrementAndGet(getBucket(nanos));
+		count.incrementAndGet();
+		total.addAndGet(nanos);
+
+		long current = max.get();
+		while (nanos > current && !max.compareAndSet(current, nanos)) {
+			current = max.get();
+		}
+	}
+
+	/**
+	 * Values below SUB_BUCKETS get a bucket each. Above that, the bucket
+	 * is given by the position of the highest bit and the bits that
+	 * follow it.
+	 */
+	private static int getBucket(long value)
+	{
+		if (value < SUB_BUCKETS) {
+			return (int)value;
+		}
+
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int sub = (int)(value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + sub;
+	}
+
+	/**
+	 * Returns the largest value that falls in the bucket.
+	 */
+	private static long getUpperBound(int bucket)
+	{
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+
+		int shift = bucket / SUB_BUCKETS - 1;
+		long lower = (long)(SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+	/**
+	 * Returns the value below which the given fraction of the recorded
+	 * values fall, rounded up to the end of its bucket.
+	 */
+	public long getPercentile(double fraction)
+	{
+		long total = count.get();
+		if (total == 0) {
+			return 0;
+		}
+
+		long rank = (long)Math.ceil(fraction * total);
+		if (rank < 1) {
+			rank = 1;
+		}
+
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			seen += buckets.get(i);
+			if (seen >= rank) {
+				return Math.min(getUpperBound(i), max.get());
+			}
+		}
+
+		// Another thread recorded values while the buckets were read.
+		return max.get();
+	}
+
+	public long getCount() { return count.get(); }
+	public long getTotal() { return total.get(); }
+	public long getMax() { return max.get(); }
+
+	public LatencySnapshot getSnapshot()
+	{
+		long n = count.get();
+		return new LatencySnapshot(n,
+			n == 0 ? 0 : total.get() / n,
+			getPercentile(0.5),
+			getPercentile(0.9),
+			getPercentile(0.99),
+			getPercentile(0.999),
+			max.get());
+	}
+
+	public void reset()
+	{
+		for (int i = 0; i < BUCKET_COUNT; i++) {
+			buckets.set(i, 0);
+		}
+		count.set(0);
+		total.set(0);
+		max.set(0);
+	}
+}
@@ -0,0 +1,45 @@
+package se.c0la.calc;
+
+import java.beans.*;
+
+/**
+ * The state of a LatencyHistogram at some point in time. All times are
+ * in nanoseconds. This is what the MetricsMXBean publishes for each
+ * phase, and shows up as a composite value in a JMX console.
+ */
+public class LatencySnapshot
+{
+	private final long count;
+	private final long mean;
+	private final long median;
+	private final long p90;
+	private final long p99;
+	private final long p999;
+	private final long max;
+
+	@ConstructorProperties({ "count", "mean", "median", "p90", "p99", "p999", "max" })
+	public LatencySnapshot(long count, long mean, long median, long p90, long p99, long p999, long max)
+	{
+		this.count = count;
+		this.mean = mean;
+		this.median = median;
+		this.p90 = p90;
+		this.p99 = p99;
+		this.p999 = p999;
+		this.max = max;
+	}
+
+	public long getCount() { return count; }
+	public long getMean() { return mean; }
+	public long getMedian() { return median; }
+	public long getP90() { return p90; }
+	public long getP99() { return p99; }
+	public long getP999() { return p999; }
+	public long getMax() { return max; }
+
+	public String toString()
+	{
+		return count + " calls, mean " + mean + " ns, median " + median + " ns, p99 " + p99 +
+			" ns, p99.9 " + p999 + " ns, max " + max + " ns";
+	}
+}
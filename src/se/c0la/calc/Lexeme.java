@@ -1,22 +1,70 @@
 package se.c0la.calc;
 
+import java.math.*;
+
 public class Lexeme
 {
 	private TokenType type;
 	private String value;
+	private Double number;
+	private BigDecimal decimal;
+	private int offset;
 	
 	public Lexeme(TokenType type)
 	{
-		this.type = type;
-		this.value = null;
+		this(type, null, -1);
 	}
 
 	public Lexeme(TokenType type, String value)
+	{
+		this(type, value, -1);
+	}
+
+	public Lexeme(TokenType type, String value, int offset)
 	{
 		this.type = type;
 		this.value = value;
+		this.offset = offset;
 	}
 	
 	public TokenType getType() { return type; }
 	public String getValue() { return value; }
+
+	/**
+	 * The position of the first character of this lexeme in the source
+	 * text, or -1 if the lexeme wasn't produced by the Lexer.
+	 */
+	public int getOffset() { return offset; }
+
+	/**
+	 * The value of a NUMBER lexeme as a double. It's only parsed once,
+	 * and then kept around for subsequent evaluations.
+	 */
+	public double getDoubleValue()
+	throws NumberFormatException
+	{
+		Double result = number;
+		if (result == null) {
+			result = Double.valueOf(value);
+			number = result;
+		}
+
+		return result.doubleValue();
+	}
+
+	/**
+	 * The exact value of a NUMBER lexeme. Like getDoubleValue(), it's
+	 * only parsed the first time it's asked for.
+	 */
+	public BigDecimal getDecimalValue()
+	throws NumberFormatException
+	{
+		BigDecimal result = decimal;
+		if (result == null) {
+			result = new BigDecimal(value);
+			decimal = result;
+		}
+
+		return result;
+	}
 }
@@ -2,94 +2,200 @@ package se.c0la.calc;
 
 import java.util.*;
 
+/**
+ * Splits the source text into lexemes. This is a hand written scanner
+ * which makes a single pass over the input, and only allocates the
+ * lexemes themselves and the strings holding numbers and names.
+ */
 public class Lexer
 {
 	public Lexer()
 	{
 	}
-	
-	public List<Lexeme> tokenize(String data)
+
+	public List<Lexeme> tokenize(CharSequence data)
 	throws UnknownTokenException
 	{
-		StringBuffer currentToken = new StringBuffer();
-		
 		List<Lexeme> lexemes = new ArrayList<Lexeme>();
 		Lexeme lexeme = null;
-		for (int i = 0; i < data.length(); i++) {
-			String cur = data.substring(i, i+1);
-			if (cur.matches("[0-9.a-zA-Z_]")) {
-				currentToken.append(cur);
+
+		int length = data.length();
+		int i = 0;
+		while (i < length) {
+			char chr = data.charAt(i);
+
+			// Numbers and names are scanned as a single run of characters,
+			// and classified once the whole run is known.
+			if (isWordCharacter(chr)) {
+				int start = i;
+				i = scanWord(data, i);
+
+				lexeme = classifyWord(data, start, i);
+				lexemes.add(lexeme);
 				continue;
 			}
-			else if (currentToken.length() > 0) {
-				String token = currentToken.toString();
-				if (token.matches("[0-9]+|[0-9]+\\.[0-9]+|[0-9]+[eE][0-9]+")) {
-					lexeme = new Lexeme(TokenType.NUMBER, token);
-					lexemes.add(lexeme);				
-				} else if (token.matches("[A-Za-z_]+[0-9]*")) {
-					lexeme = new Lexeme(TokenType.VARIABLE, token);
-					lexemes.add(lexeme);
-				} else {
-					throw new UnknownTokenException(token + " is not a valid variable name, nor a number.");
-				}
-				
-				currentToken = new StringBuffer();
-			}
-			
-			char chr = data.charAt(i);
+
 			switch (chr) {
 				case '+':
-					lexeme = new Lexeme(TokenType.PLUS);
+					lexeme = new Lexeme(TokenType.PLUS, null, i);
 					break;
 				case '-':
-					lexeme = new Lexeme(TokenType.MINUS);
+					lexeme = new Lexeme(TokenType.MINUS, null, i);
 					break;
 				case '*':
-					lexeme = new Lexeme(TokenType.ASTERIX);
+					lexeme = new Lexeme(TokenType.ASTERIX, null, i);
 					break;
 				case '/':
-					lexeme = new Lexeme(TokenType.SLASH);
+					lexeme = new Lexeme(TokenType.SLASH, null, i);
 					break;
 				case '(':
 					if (lexeme != null && lexeme.getType() == TokenType.VARIABLE) {
 						lexemes.remove(lexemes.size() - 1);
-						lexeme = new Lexeme(TokenType.FUNCTION, lexeme.getValue());
+						lexeme = new Lexeme(TokenType.FUNCTION, lexeme.getValue(), lexeme.getOffset());
 					} else {
-						lexeme = new Lexeme(TokenType.OPEN_PARANTHESIS);
+						lexeme = new Lexeme(TokenType.OPEN_PARANTHESIS, null, i);
 					}
 					break;
 				case ')':
-					lexeme = new Lexeme(TokenType.CLOSE_PARANTHESIS);
+					lexeme = new Lexeme(TokenType.CLOSE_PARANTHESIS, null, i);
 					break;
 				case '^':
-					lexeme = new Lexeme(TokenType.EXPONENT);
+					lexeme = new Lexeme(TokenType.EXPONENT, null, i);
 					break;
 				case '=':
-					lexeme = new Lexeme(TokenType.EQUALSIGN);
+					lexeme = new Lexeme(TokenType.EQUALSIGN, null, i);
+					break;
+				case ',':
+					lexeme = new Lexeme(TokenType.COMMA, null, i);
 					break;
 				case ' ':
+					i++;
 					continue;
 				default:
-					throw new UnknownTokenException(cur + " is an unknown character.");
+					throw new UnknownTokenException(chr + " is an unknown character.");
 			}
-			
+
 			lexemes.add(lexeme);
+			i++;
 		}
-		
-		// Add any trailing tokens
-		if (currentToken.length() > 0) {
-			String token = currentToken.toString();
-			if (token.matches("[0-9]+|[0-9]+\\.[0-9]+|[0-9]+[eE][0-9]+")) {
-				lexeme = new Lexeme(TokenType.NUMBER, token);
-				lexemes.add(lexeme);				
-			} else if (token.matches("[A-Za-z_]+[0-9]*")) {
-				lexeme = new Lexeme(TokenType.VARIABLE, token);
-				lexemes.add(lexeme);
-			} else {
-				throw new UnknownTokenException(token + " is not a valid variable name, nor a number.");
+
+		return lexemes;
+	}
+
+	private static boolean isDigit(char chr)
+	{
+		return chr >= '0' && chr <= '9';
+	}
+
+	private static boolean isLetter(char chr)
+	{
+		return (chr >= 'a' && chr <= 'z') || (chr >= 'A' && chr <= 'Z') || chr == '_';
+	}
+
+	private static boolean isWordCharacter(char chr)
+	{
+		return isDigit(chr) || isLetter(chr) || chr == '.';
+	}
+
+	/**
+	 * Returns the position after the run of word characters starting
+	 * at start. A sign directly following the exponent marker of a number,
+	 * as in 1.5e-3, is considered part of the run.
+	 */
+	private int scanWord(CharSequence data, int start)
+	{
+		int length = data.length();
+		boolean number = isDigit(data.charAt(start));
+
+		int i = start + 1;
+		while (i < length) {
+			char chr = data.charAt(i);
+			if (isWordCharacter(chr)) {
+				i++;
+			}
+			else if (number && (chr == '+' || chr == '-') && i + 1 < length &&
+				isDigit(data.charAt(i + 1))) {
+
+				char prev = data.charAt(i - 1);
+				if (prev != 'e' && prev != 'E') {
+					break;
+				}
+
+				i++;
+			}
+			else {
+				break;
 			}
 		}
-		
-		return lexemes;
+
+		return i;
+	}
+
+	/**
+	 * Numbers are on the form 12, 12.5, 12e3 or 1.25e-3, and names
+	 * consist of letters and underscores optionally followed by digits.
+	 */
+	private Lexeme classifyWord(CharSequence data, int start, int end)
+	throws UnknownTokenException
+	{
+		if (isDigit(data.charAt(start))) {
+			if (matchNumber(data, start, end) == end) {
+				return new Lexeme(TokenType.NUMBER, data.subSequence(start, end).toString(), start);
+			}
+		}
+		else {
+			int i = start;
+			while (i < end && isLetter(data.charAt(i))) {
+				i++;
+			}
+
+			if (i > start && skipDigits(data, i, end) == end) {
+				return new Lexeme(TokenType.VARIABLE, data.subSequence(start, end).toString(), start);
+			}
+		}
+
+		throw new UnknownTokenException(data.subSequence(start, end) +
+			" is not a valid variable name, nor a number.");
+	}
+
+	/**
+	 * Returns the position after the number starting at start, or -1
+	 * if a fraction or exponent is missing its digits.
+	 */
+	private int matchNumber(CharSequence data, int start, int end)
+	{
+		int i = skipDigits(data, start, end);
+
+		if (i < end && data.charAt(i) == '.') {
+			int fraction = i + 1;
+			i = skipDigits(data, fraction, end);
+			if (i == fraction) {
+				return -1;
+			}
+		}
+
+		if (i < end && (data.charAt(i) == 'e' || data.charAt(i) == 'E')) {
+			i++;
+			if (i < end && (data.charAt(i) == '+' || data.charAt(i) == '-')) {
+				i++;
+			}
+
+			int exponent = i;
+			i = skipDigits(data, exponent, end);
+			if (i == exponent) {
+				return -1;
+			}
+		}
+
+		return i;
+	}
+
+	private int skipDigits(CharSequence data, int start, int end)
+	{
+		while (start < end && isDigit(data.charAt(start))) {
+			start++;
+		}
+
+		return start;
 	}
 }
@@ -0,0 +1,214 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * An expression in which every name has been resolved by the
+ * ExpressionLinker. Variables are read from numbered slots in a frame,
+ * and functions are called directly, so evaluation doesn't involve any
+ * map lookups.
+ *
+ * The first slots of a frame hold the parameters, in the order they were
+ * given to the linker. They're followed by the other variables that the
+ * expression refers to, which newFrame() fills in with the values they
+ * had when the expression was linked, and finally by the values of shared
+ * DAG nodes, which are managed by evaluate() itself.
+ */
+public class LinkedExpression
+{
+	static abstract class Node
+	{
+		abstract BigDecimal evaluate(BigDecimal[] frame);
+	}
+
+	static class Constant extends Node
+	{
+		private final BigDecimal value;
+		Constant(BigDecimal value) { this.value = value; }
+		BigDecimal evaluate(BigDecimal[] frame) { return value; }
+	}
+
+	static class Variable extends Node
+	{
+		private final int slot;
+		Variable(int slot) { this.slot = slot; }
+		BigDecimal evaluate(BigDecimal[] frame) { return frame[slot]; }
+	}
+
+	static class Call extends Node
+	{
+		private final MathFunction function;
+		private final Node argument;
+
+		Call(MathFunction function, Node argument)
+		{
+			this.function = function;
+			this.argument = argument;
+		}
+
+		BigDecimal evaluate(BigDecimal[] frame)
+		{
+			return function.apply(argument.evaluate(frame));
+		}
+	}
+
+	static class CallN extends Node
+	{
+		private final MultiArgumentFunction function;
+		private final MathContext ctx;
+		private final Node[] arguments;
+
+		CallN(MultiArgumentFunction function, MathContext ctx, Node[] arguments)
+		{
+			this.function = function;
+			this.ctx = ctx;
+			this.arguments = arguments;
+		}
+
+		BigDecimal evaluate(BigDecimal[] frame)
+		{
+			BigDecimal[] values = new BigDecimal[arguments.length];
+			for (int i = 0; i < arguments.length; i++) {
+				values[i] = arguments[i].evaluate(frame);
+			}
+
+			return function.apply(values, ctx);
+		}
+	}
+
+	static class Negate extends Node
+	{
+		private final Node operand;
+		Negate(Node operand) { this.operand = operand; }
+		BigDecimal evaluate(BigDecimal[] frame) { return operand.evaluate(frame).negate(); }
+	}
+
+	static class Binary extends Node
+	{
+		private final TokenType operator;
+		private final Evaluator evaluator;
+		private final Node left;
+		private final Node right;
+
+		Binary(TokenType operator, Evaluator evaluator, Node left, Node right)
+		{
+			this.operator = operator;
+			this.evaluator = evaluator;
+			this.left = left;
+			this.right = right;
+		}
+
+		BigDecimal evaluate(BigDecimal[] frame)
+		{
+			BigDecimal l = left.evaluate(frame);
+			BigDecimal r = right.evaluate(frame);
+			switch (operator) {
+				case PLUS:
+					return l.add(r);
+				case MINUS:
+					return l.subtract(r);
+				case ASTERIX:
+					return l.multiply(r);
+				case SLASH:
+					return evaluator.divide(l, r);
+				default:
+					return evaluator.power(l, r);
+			}
+		}
+	}
+
+	/**
+	 * A node with several parents, whose value is kept in the frame
+	 * once it has been computed.
+	 */
+	static class Shared extends Node
+	{
+		private final int slot;
+		private final Node node;
+
+		Shared(int slot, Node node)
+		{
+			this.slot = slot;
+			this.node = node;
+		}
+
+		BigDecimal evaluate(BigDecimal[] frame)
+		{
+			BigDecimal value = frame[slot];
+			if (value == null) {
+				value = node.evaluate(frame);
+				frame[slot] = value;
+			}
+
+			return value;
+		}
+	}
+
+	private Node root;
+	private String[] names;
+	private BigDecimal[] values;
+	private int parameterCount;
+	private int frameSize;
+
+	LinkedExpression(Node root, String[] names, BigDecimal[] values, int parameterCount, int frameSize)
+	{
+		this.root = root;
+		this.names = names;
+		this.values = values;
+		this.parameterCount = parameterCount;
+		this.frameSize = frameSize;
+	}
+
+	/**
+	 * Returns the slot of the named variable, or -1 if the expression
+	 * doesn't refer to it and it isn't a parameter.
+	 */
+	public int getSlot(String name)
+	{
+		for (int i = 0; i < names.length; i++) {
+			if (names[i].equals(name)) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Returns a frame with every variable except the parameters filled in.
+	 * A frame may be reused for any number of evaluations, but only by a
+	 * single thread at a time.
+	 */
+	public BigDecimal[] newFrame()
+	{
+		BigDecimal[] frame = new BigDecimal[frameSize];
+		System.arraycopy(values, 0, frame, 0, values.length);
+
+		return frame;
+	}
+
+	public BigDecimal evaluate(BigDecimal[] frame)
+	throws EvaluationException
+	{
+		for (int i = 0; i < parameterCount; i++) {
+			if (frame[i] == null) {
+				throw new UndefinedVariableException("Variable " + names[i] + " is undefined.");
+			}
+		}
+
+		// Forget the shared values of the previous evaluation.
+		for (int i = names.length; i < frameSize; i++) {
+			frame[i] = null;
+		}
+
+		try {
+			return root.evaluate(frame);
+		}
+		catch (NumberFormatException e) {
+			throw new EvaluationException("Invalid number specified");
+		}
+		catch (Exception e) {
+			throw new EvaluationException("Evaluation of expression failed");
+		}
+	}
+}
@@ -1,10 +1,14 @@
 package se.c0la.calc;
 
 import java.util.*;
+import java.io.*;
 import java.math.*;
+import javax.management.*;
 
 public class Main
 {
+	private static final int CACHE_SIZE = 1000;
+
 	public static void main(String[] args)
 	throws Exception
 	{
@@ -14,21 +18,40 @@ public class Main
 		//String str = "2*sin(pi / 4)^2 + 2";
 		//String str = "e^ln(7.0)";
 		//String str = "2*foo+6.1";
+
+		if (args.length > 0 && args[0].equals("-batch")) {
+			System.exit(batch(args.length > 1 ? args[1] : "-"));
+		}
 	
+		Metrics metrics = new Metrics();
+		ObjectName metricsName = metrics.register("repl");
+
 		System.out.println("se.c0la.calc 0.1");
 		System.out.println("type quit to exit. you can use debugon and debugoff to");
-		System.out.println("to turn debugging on and off.");
-		System.out.println("assign variables using \"name = expression\"");
+		System.out.println("to turn debugging on and off, and profileon and profileoff to");
+		System.out.println("time each part of the expressions. use parser legacy or");
+		System.out.println("parser precedence to switch parser implementation.");
+		System.out.println("cache shows statistics for the expression cache, and metrics");
+		System.out.println("shows latencies, errors and function calls, which are also");
+		System.out.println("published over JMX as " + metricsName + ".");
+		System.out.println("assign variables using \"name = expression\". like in a spreadsheet,");
+		System.out.println("variables that depend on a variable are updated when it changes.");
+		System.out.println("run with -batch [file] to evaluate a file, or stdin, line by line.");
 		System.out.println();
 		System.out.println("the following operators are supported: +-*/()^");
 		System.out.println("these constants are included: pi, e");
 		System.out.println("and these functions: sin(), cos(), tan(), ln(), log(), log10(), asin(), acos(), atan()");
+		System.out.println("functions with comma separated arguments: min(), max(), atan2(), hypot(), pow(), clamp()");
 		System.out.println();
 		System.out.println("you can now enter an arbitrary math expression:");
 	
-		Lexer lexer = new Lexer();
-		Parser parser = new Parser();
-		Evaluator evaluator = new Evaluator();
+		Lexer lexer = new InstrumentedLexer(metrics);
+		ExpressionParser parser = new InstrumentedParser(new PrecedenceParser(), metrics);
+		Evaluator evaluator = new InstrumentedEvaluator(metrics);
+		ExpressionCache cache = new ExpressionCache(lexer, parser, CACHE_SIZE);
+		VariableStore store = new VariableStore(evaluator);
+		
+		ProfilingListener profiler = null;
 		
 		Scanner scanner = new Scanner(System.in);
 		while (true) {
@@ -58,11 +81,58 @@ public class Main
 				System.out.println("debug mode is now disabled.");
 				continue;
 			}
+			else if (str.equals("profileon")) {
+				profiler = new ProfilingListener();
+				evaluator.setListener(profiler);
+				System.out.println("profiling is now enabled.");
+				continue;
+			}
+			else if (str.equals("profileoff")) {
+				if (profiler != null) {
+					evaluator.setListener(null);
+					profiler.print(System.out, 10);
+					profiler = null;
+				}
+				continue;
+			}
+			else if (str.startsWith("parser")) {
+				String[] split = str.split(" ");
+				if (split.length > 1 && split[1].equals("legacy")) {
+					parser = new InstrumentedParser(new Parser(), metrics);
+				}
+				else if (split.length > 1 && split[1].equals("precedence")) {
+					parser = new InstrumentedParser(new PrecedenceParser(), metrics);
+				}
+				else {
+					System.out.println("usage: parser legacy|precedence");
+					continue;
+				}
+
+				cache = new ExpressionCache(lexer, parser, CACHE_SIZE);
+
+				System.out.println("using the " + split[1] + " parser");
+				continue;
+			}
+			else if (str.equals("cache")) {
+				System.out.println(cache.size() + " of " + cache.getMaximumSize() + " entries, " +
+					cache.getHitCount() + " hits, " + cache.getMissCount() + " misses, " +
+					cache.getEvictionCount() + " evictions");
+				continue;
+			}
+			else if (str.equals("metrics")) {
+				System.out.println("lexing: " + metrics.getLexing());
+				System.out.println("parsing: " + metrics.getParsing());
+				System.out.println("evaluation: " + metrics.getEvaluation());
+				System.out.println("exceptions: " + metrics.getExceptionCounts());
+				System.out.println("function calls: " + metrics.getFunctionCalls());
+				continue;
+			}
 			else if (str.startsWith("precision")) {
 				String[] split = str.split(" ");
 				try {
 					int precision = Integer.parseInt(split[1]);
 					evaluator.setPrecision(precision);
+					store.recomputeAll();
 
 					System.out.println("precision set to " + precision);
 				}
@@ -71,38 +141,32 @@ public class Main
 			}
 		
 			try {
-				long parseTime = System.currentTimeMillis();
+				long parseTime = System.nanoTime();
 
-				List<Lexeme> lexemes = lexer.tokenize(str);
+				// Split off any assignment, so that only the expression
+				// itself is used as the key in the cache.
+				String[] assignment = BatchEvaluator.splitAssignment(lexer, str);
+				String variable = assignment[0];
+				String expression = assignment[1];
 				
-				String variable = null;
-				if (lexemes.size() > 2) {
-					Lexeme first = lexemes.get(0);
-					Lexeme second = lexemes.get(1);
-					
-					if (first.getType() == TokenType.VARIABLE && 
-						second.getType() == TokenType.EQUALSIGN) {
-					
-						variable = first.getValue();
-						lexemes.remove(0);
-						lexemes.remove(0);
-					}
-				}
-				
-				ASTNode ast = parser.parse(lexemes);
+				ASTNode ast = cache.parse(expression);
 
-				parseTime = System.currentTimeMillis() - parseTime;
-				
-				long evalTime = System.currentTimeMillis();
-				BigDecimal value = evaluator.evaluate(ast);
-				evalTime = System.currentTimeMillis() - evalTime;
+				parseTime = System.nanoTime() - parseTime;
 				
+				long evalTime = System.nanoTime();
+				BigDecimal value;
 				if (variable != null) {
-					evaluator.addVariable(variable, value);
+					value = store.define(variable, ast);
+				} else {
+					value = evaluator.evaluate(ast);
 				}
+				evalTime = System.nanoTime() - evalTime;
 				
 				System.out.println(value);
-				System.out.println("parsing: " + parseTime + " ms, eval: " + evalTime + " ms");
+				if (variable != null && store.getRecomputedCount() > 1) {
+					System.out.println((store.getRecomputedCount() - 1) + " dependent variables updated");
+				}
+				System.out.println("parsing: " + parseTime / 1000 + " us, eval: " + evalTime / 1000 + " us");
 			}
 			catch (UnknownTokenException e) {
 				System.out.println("Unknown token: " + e.getMessage());
@@ -115,4 +179,34 @@ public class Main
 			}
 		}
 	}
+
+	/**
+	 * Evaluates every line of a file, or of stdin if the file is "-", and
+	 * prints the results in the same order. Returns 1 if any line failed.
+	 */
+	private static int batch(String file)
+	throws IOException, InterruptedException
+	{
+		Lexer lexer = new Lexer();
+		ExpressionCache cache = new ExpressionCache(lexer, new PrecedenceParser(), CACHE_SIZE);
+		BatchEvaluator batch = new BatchEvaluator(lexer, cache, new Evaluator());
+
+		BufferedReader in;
+		if (file.equals("-")) {
+			in = new BufferedReader(new InputStreamReader(System.in));
+		}
+		else {
+			in = new BufferedReader(new FileReader(file));
+		}
+
+		Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+		try {
+			int failures = batch.run(in, out);
+			return failures > 0 ? 1 : 0;
+		}
+		finally {
+			out.flush();
+			in.close();
+		}
+	}
 }
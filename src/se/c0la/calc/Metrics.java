@@ -0,0 +1,112 @@
+package se.c0la.calc;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.lang.management.*;
+import javax.management.*;
+
+/**
+ * Collects the latency of lexing, parsing and evaluation, how many of
+ * each kind of exception have been thrown, and how many times each
+ * function has been called. The numbers are recorded by an
+ * InstrumentedLexer, InstrumentedParser and InstrumentedEvaluator that
+ * share a Metrics, and can be watched over JMX once register() has been
+ * called.
+ */
+public class Metrics implements MetricsMXBean
+{
+	public static final String OBJECT_NAME = "se.c0la.calc:type=Metrics";
+
+	private final LatencyHistogram lexing;
+	private final LatencyHistogram parsing;
+	private final LatencyHistogram evaluation;
+
+	private final ConcurrentMap<String, AtomicLong> exceptions;
+	private final ConcurrentMap<String, AtomicLong> calls;
+
+	public Metrics()
+	{
+		lexing = new LatencyHistogram();
+		parsing = new LatencyHistogram();
+		evaluation = new LatencyHistogram();
+
+		exceptions = new ConcurrentHashMap<String, AtomicLong>();
+		calls = new ConcurrentHashMap<String, AtomicLong>();
+	}
+
+	/**
+	 * Publishes the metrics in the platform MBean server, under
+	 * OBJECT_NAME with the given name added, so that several sets of
+	 * metrics can be registered side by side.
+	 */
+	public ObjectName register(String name)
+	throws JMException
+	{
+		ObjectName objectName = new ObjectName(OBJECT_NAME + ",name=" + ObjectName.quote(name));
+		ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+
+		return objectName;
+	}
+
+	public void recordLexing(long nanos) { lexing.record(nanos); }
+	public void recordParsing(long nanos) { parsing.record(nanos); }
+	public void recordEvaluation(long nanos) { evaluation.record(nanos); }
+
+	public void countException(Exception e)
+	{
+		increment(exceptions, e.getClass().getSimpleName());
+	}
+
+	public void countCall(String function)
+	{
+		increment(calls, function);
+	}
+
+	private static void increment(ConcurrentMap<String, AtomicLong> counters, String key)
+	{
+		AtomicLong counter = counters.get(key);
+		if (counter == null) {
+			AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(key, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+
+		counter.incrementAndGet();
+	}
+
+	public LatencySnapshot getLexing() { return lexing.getSnapshot(); }
+	public LatencySnapshot getParsing() { return parsing.getSnapshot(); }
+	public LatencySnapshot getEvaluation() { return evaluation.getSnapshot(); }
+
+	public Map<String, Long> getExceptionCounts()
+	{
+		return snapshot(exceptions);
+	}
+
+	public Map<String, Long> getFunctionCalls()
+	{
+		return snapshot(calls);
+	}
+
+	private static Map<String, Long> snapshot(ConcurrentMap<String, AtomicLong> counters)
+	{
+		Map<String, Long> result = new TreeMap<String, Long>();
+		for (Map.Entry<String, AtomicLong> entry : counters.entrySet()) {
+			result.put(entry.getKey(), entry.getValue().get());
+		}
+
+		return result;
+	}
+
+	public void reset()
+	{
+		lexing.reset();
+		parsing.reset();
+		evaluation.reset();
+		exceptions.clear();
+		calls.clear();
+	}
+}
@@ -0,0 +1,19 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * The management interface of Metrics. Latencies are in nanoseconds,
+ * and the maps are keyed by exception class and by function name.
+ */
+public interface MetricsMXBean
+{
+	public LatencySnapshot getLexing();
+	public LatencySnapshot getParsing();
+	public LatencySnapshot getEvaluation();
+
+	public Map<String, Long> getExceptionCounts();
+	public Map<String, Long> getFunctionCalls();
+
+	public void reset();
+}
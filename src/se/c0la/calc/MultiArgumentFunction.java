@@ -0,0 +1,178 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * A function that takes a number of comma separated arguments, such as
+ * min(a, b, c) or atan2(y, x). The same function is used by both the
+ * Evaluator and the DoubleEvaluator.
+ *
+ * The double overloads for one, two and three arguments let the
+ * DoubleEvaluator call a function without boxing the arguments or
+ * allocating an array for them. By default they fall back to
+ * apply(double[]), which in turn goes through the BigDecimal version, so
+ * a function only has to override them if it should be fast.
+ */
+public abstract class MultiArgumentFunction
+{
+	/**
+	 * Used as the maximum number of arguments for a function which
+	 * accepts any number of them.
+	 */
+	public static final int VARIADIC = -1;
+
+	private static final MathContext DOUBLE_CONTEXT = MathContext.DECIMAL64;
+
+	private final int minArguments;
+	private final int maxArguments;
+
+	public MultiArgumentFunction(int minArguments, int maxArguments)
+	{
+		this.minArguments = minArguments;
+		this.maxArguments = maxArguments;
+	}
+
+	public int getMinArguments() { return minArguments; }
+	public int getMaxArguments() { return maxArguments; }
+
+	public boolean accepts(int count)
+	{
+		return count >= minArguments && (maxArguments == VARIADIC || count <= maxArguments);
+	}
+
+	public abstract BigDecimal apply(BigDecimal[] arguments, MathContext ctx);
+
+	public double apply(double a)
+	{
+		return apply(new double[] { a });
+	}
+
+	public double apply(double a, double b)
+	{
+		return apply(new double[] { a, b });
+	}
+
+	public double apply(double a, double b, double c)
+	{
+		return apply(new double[] { a, b, c });
+	}
+
+	/**
+	 * NaN and infinity have no BigDecimal value, so any of them gives NaN,
+	 * just like a single argument function that is outside its domain.
+	 */
+	public double apply(double[] arguments)
+	{
+		BigDecimal[] decimals = new BigDecimal[arguments.length];
+		for (int i = 0; i < arguments.length; i++) {
+			if (Double.isNaN(arguments[i]) || Double.isInfinite(arguments[i])) {
+				return Double.NaN;
+			}
+			decimals[i] = new BigDecimal(arguments[i], DOUBLE_CONTEXT);
+		}
+
+		return apply(decimals, DOUBLE_CONTEXT).doubleValue();
+	}
+
+	public static final MultiArgumentFunction MIN = new MultiArgumentFunction(1, VARIADIC) {
+		public BigDecimal apply(BigDecimal[] arguments, MathContext ctx)
+		{
+			BigDecimal result = arguments[0];
+			for (int i = 1; i < arguments.length; i++) {
+				if (arguments[i].compareTo(result) < 0) {
+					result = arguments[i];
+				}
+			}
+			return result;
+		}
+
+		public double apply(double a) { return a; }
+		public double apply(double a, double b) { return Math.min(a, b); }
+		public double apply(double a, double b, double c) { return Math.min(Math.min(a, b), c); }
+
+		public double apply(double[] arguments)
+		{
+			double result = arguments[0];
+			for (int i = 1; i < arguments.length; i++) {
+				result = Math.min(result, arguments[i]);
+			}
+			return result;
+		}
+	};
+
+	public static final MultiArgumentFunction MAX = new MultiArgumentFunction(1, VARIADIC) {
+		public BigDecimal apply(BigDecimal[] arguments, MathContext ctx)
+		{
+			BigDecimal result = arguments[0];
+			for (int i = 1; i < arguments.length; i++) {
+				if (arguments[i].compareTo(result) > 0) {
+					result = arguments[i];
+				}
+			}
+			return result;
+		}
+
+		public double apply(double a) { return a; }
+		public double apply(double a, double b) { return Math.max(a, b); }
+		public double apply(double a, double b, double c) { return Math.max(Math.max(a, b), c); }
+
+		public double apply(double[] arguments)
+		{
+			double result = arguments[0];
+			for (int i = 1; i < arguments.length; i++) {
+				result = Math.max(result, arguments[i]);
+			}
+			return result;
+		}
+	};
+
+	public static final MultiArgumentFunction ATAN2 = new MultiArgumentFunction(2, 2) {
+		public BigDecimal apply(BigDecimal[] arguments, MathContext ctx)
+		{
+			if (BigMath.isDoublePrecision(ctx)) {
+				return new BigDecimal(apply(arguments[0].doubleValue(), arguments[1].doubleValue()), ctx);
+			}
+			return BigMath.atan2(arguments[0], arguments[1], ctx);
+		}
+
+		public double apply(double y, double x) { return Math.atan2(y, x); }
+	};
+
+	public static final MultiArgumentFunction HYPOT = new MultiArgumentFunction(2, 2) {
+		public BigDecimal apply(BigDecimal[] arguments, MathContext ctx)
+		{
+			if (BigMath.isDoublePrecision(ctx)) {
+				return new BigDecimal(apply(arguments[0].doubleValue(), arguments[1].doubleValue()), ctx);
+			}
+			return BigMath.hypot(arguments[0], arguments[1], ctx);
+		}
+
+		public double apply(double x, double y) { return Math.hypot(x, y); }
+	};
+
+	public static final MultiArgumentFunction POW = new MultiArgumentFunction(2, 2) {
+		public BigDecimal apply(BigDecimal[] arguments, MathContext ctx)
+		{
+			if (BigMath.isDoublePrecision(ctx)) {
+				return new BigDecimal(apply(arguments[0].doubleValue(), arguments[1].doubleValue()), ctx);
+			}
+			return BigMath.pow(arguments[0], arguments[1], ctx);
+		}
+
+		public double apply(double x, double y) { return Math.pow(x, y); }
+	};
+
+	/**
+	 * clamp(x, lo, hi) limits x to the range from lo to hi, computed as
+	 * max(lo, min(x, hi)) in both versions, so that if lo is greater than
+	 * hi, the result is lo.
+	 */
+	public static final MultiArgumentFunction CLAMP = new MultiArgumentFunction(3, 3) {
+		public BigDecimal apply(BigDecimal[] arguments, MathContext ctx)
+		{
+			return arguments[0].min(arguments[2]).max(arguments[1]);
+		}
+
+		public double apply(double x, double lo, double hi) { return Math.max(lo, Math.min(x, hi)); }
+	};
+}
@@ -0,0 +1,18 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * Is told about every list of lexemes given to a parser, and the AST
+ * that it's turned into. Parsing is only traced when a listener has been
+ * installed with ExpressionParser.setListener().
+ */
+public interface ParseListener
+{
+	public void parsing(List<Lexeme> lexemes);
+
+	/**
+	 * Called when parsing has finished, with a null node if it failed.
+	 */
+	public void parsed(List<Lexeme> lexemes, ASTNode node);
+}
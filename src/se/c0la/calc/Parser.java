@@ -5,8 +5,12 @@ import java.util.*;
 /**
  * Transform a sequence of lexemes into an abstract syntax tree
  * that can be easily evaluated.
+ *
+ * This is the original parser, which repeatedly rewrites the token list
+ * once for every level of precedence. PrecedenceParser produces the same
+ * trees in a single pass.
  */
-public class Parser
+public class Parser implements ExpressionParser
 {
 	/**
 	 * Used in the intermediate parsing steps when part
@@ -44,7 +48,7 @@ public class Parser
 		public boolean isLexeme() { return node == null; }
 	}
 	
-	private boolean debug;
+	private ParseListener listener;
 
 	public Parser()
 	{
@@ -53,12 +57,17 @@ public class Parser
 	
 	public Parser(boolean debug)
 	{
-		this.debug = debug;
+		setDebug(debug);
 	}
 	
 	public void setDebug(boolean debug)
 	{
-		this.debug = debug;
+		setListener(debug ? new DebugListener(System.out) : null);
+	}
+
+	public void setListener(ParseListener listener)
+	{
+		this.listener = listener;
 	}
 
 	/**
@@ -67,21 +76,30 @@ public class Parser
 	public ASTNode parse(List<Lexeme> lexemes)
 	throws ParseErrorException
 	{
-		// This method is called recusively, so it's useful
-		// when debugging to output the list of lexemes being
-		// analyzed.
-		if (debug) {
-			for (Lexeme lexeme : lexemes) {
-				if (lexeme.getType() == TokenType.NUMBER) {
-					System.out.println("NUMBER: " + lexeme.getValue());
-				} else {
-					System.out.println(lexeme.getType());
-				}
-			}
-			
-			System.out.println();
+		if (listener == null) {
+			return parseLexemes(lexemes);
 		}
-		
+
+		ParseListener listener = this.listener;
+		listener.parsing(lexemes);
+
+		ASTNode node = null;
+		try {
+			node = parseLexemes(lexemes);
+		}
+		finally {
+			listener.parsed(lexemes, node);
+		}
+
+		return node;
+	}
+
+	/**
+	 * This is called recursively for each sub-expression.
+	 */
+	private ASTNode parseLexemes(List<Lexeme> lexemes)
+	throws ParseErrorException
+	{
 		List<TokenWrapper> tokenList = new ArrayList<TokenWrapper>();
 		
 		// Eliminate all paranthesis and functions.
@@ -110,13 +128,15 @@ public class Parser
 				case CLOSE_PARANTHESIS:
 					if (depth == 1) {
 						subList = lexemes.subList(pos + 1, i);
-						ASTNode subAST = parse(subList);
 						
 						// If this is a function rather than an regular
 						// pair of paranthesis, we wrap it in another AST node.
+						ASTNode subAST;
 						Lexeme openLexeme = lexemes.get(pos);
 						if (openLexeme.getType() == TokenType.FUNCTION) {
-							subAST = new ASTNode(openLexeme, subAST, null);
+							subAST = parseArguments(openLexeme, subList);
+						} else {
+							subAST = parseLexemes(subList);
 						}
 						
 						tokenList.add(new TokenWrapper(subAST));
@@ -125,7 +145,7 @@ public class Parser
 						throw new ParseErrorException("Unmatched paranthesis");
 					}
 					
-					depth++;
+					depth--;
 					break;
 
 				// Any lexemes that are not contained within a pair of paranthesis
@@ -158,6 +178,44 @@ public class Parser
 		return wrapper.getNode();
 	}
 	
+	/**
+	 * Splits the lexemes between the paranthesis of a function call at
+	 * the commas that aren't nested within another pair of paranthesis,
+	 * and parses each argument separately.
+	 */
+	private ASTNode parseArguments(Lexeme function, List<Lexeme> lexemes)
+	throws ParseErrorException
+	{
+		List<ASTNode> arguments = new ArrayList<ASTNode>();
+		
+		int depth = 0, start = 0;
+		for (int i = 0; i < lexemes.size(); i++) {
+			switch (lexemes.get(i).getType()) {
+				case OPEN_PARANTHESIS:
+				case FUNCTION:
+					depth++;
+					break;
+				case CLOSE_PARANTHESIS:
+					depth--;
+					break;
+				case COMMA:
+					if (depth == 0) {
+						arguments.add(parseLexemes(lexemes.subList(start, i)));
+						start = i + 1;
+					}
+					break;
+			}
+		}
+		
+		arguments.add(parseLexemes(lexemes.subList(start, lexemes.size())));
+		
+		if (arguments.size() == 1) {
+			return new ASTNode(function, arguments.get(0), null);
+		}
+		
+		return new ASTNode(function, arguments.toArray(new ASTNode[arguments.size()]));
+	}
+	
 	/**
 	 * This procedure is basically dedicated to handeling stray minus signs. For example,
 	 * 10^-3 proved to be hard to handle without parsing -3 before we parse the exponent.
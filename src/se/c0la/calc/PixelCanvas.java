@@ -0,0 +1,167 @@
+package se.c0la.calc;
+
+import java.awt.image.*;
+
+/**
+ * Draws straight into the pixels of a BufferedImage of TYPE_INT_RGB,
+ * rather than going through Graphics2D. Lines are antialiased with Wu's
+ * algorithm, which blends each point of the line into the two pixels
+ * closest to it, in proportion to how close it is to each of them.
+ *
+ * Coordinates are in pixels, with the center of the top left pixel at
+ * (0, 0), and may have fractions, so a curve through sampled points keeps
+ * its sub-pixel position.
+ *
+ * The image may be a horizontal strip of a larger one, starting at a
+ * given row. Coordinates are still those of the larger image, and
+ * anything outside the strip is left out, so a large image can be drawn
+ * one strip at a time by drawing everything into each strip.
+ */
+public class PixelCanvas
+{
+	private final int[] pixels;
+	private final int width;
+	private final int height;
+	private final int top;
+
+	public PixelCanvas(BufferedImage image)
+	{
+		this(image, 0);
+	}
+
+	/**
+	 * Creates a canvas for a strip whose first row is row top of the
+	 * larger image.
+	 */
+	public PixelCanvas(BufferedImage image, int top)
+	{
+		if (image.getType() != BufferedImage.TYPE_INT_RGB) {
+			throw new IllegalArgumentException("Only TYPE_INT_RGB images are supported");
+		}
+
+		this.pixels = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+		this.width = image.getWidth();
+		this.height = image.getHeight();
+		this.top = top;
+	}
+
+	public int getWidth() { return width; }
+	public int getHeight() { return height; }
+	public int getTop() { return top; }
+
+	/**
+	 * Blends rgb into the pixel at x, y with the given opacity, between
+	 * 0 and 256. Pixels outside the image are ignored.
+	 */
+	public void blend(int x, int y, int rgb, int alpha)
+	{
+		y -= top;
+		if (x < 0 || y < 0 || x >= width || y >= height || alpha <= 0) {
+			return;
+		}
+
+		int index = y * width + x;
+		if (alpha >= 256) {
+			pixels[index] = rgb;
+			return;
+		}
+
+		// Red and blue are blended together, since the product of a
+		// channel and alpha fits in 16 bits.
+		int dst = pixels[index];
+		int rb = ((rgb & 0xff00ff) * alpha + (dst & 0xff00ff) * (256 - alpha)) >>> 8;
+		int g = ((rgb & 0x00ff00) * alpha + (dst & 0x00ff00) * (256 - alpha)) >>> 8;
+		pixels[index] = (rb & 0xff00ff) | (g & 0x00ff00);
+	}
+
+	/**
+	 * Draws an antialiased line, one pixel wide. Only the part of the line
+	 * that is near the canvas is visited, so the part of a steep curve
+	 * that is far off the image costs nothing.
+	 */
+	public void drawLine(double x0, double y0, double x1, double y1, int rgb)
+	{
+		if (!isFinite(x0) || !isFinite(y0) || !isFinite(x1) || !isFinite(y1)) {
+			return;
+		}
+
+		if (Math.abs(y1 - y0) > Math.abs(x1 - x0)) {
+			drawWu(y0, x0, y1, x1, rgb, true, top, top + height - 1, 0, width - 1);
+		} else {
+			drawWu(x0, y0, x1, y1, rgb, false, 0, width - 1, top, top + height - 1);
+		}
+	}
+
+	private static boolean isFinite(double x)
+	{
+		return !Double.isNaN(x) && !Double.isInfinite(x);
+	}
+
+	/**
+	 * Wu's algorithm for a line along the major axis u, with v the minor
+	 * axis, so that the slope is at most one. If steep is set, u is y.
+	 * The canvas covers uMin to uMax and vMin to vMax.
+	 *
+	 * Each point is computed from the end points, rather than from the
+	 * point before it, so a line comes out exactly the same whichever part
+	 * of it is drawn. This is what keeps the strips of an image seamless.
+	 */
+	private void drawWu(double u0, double v0, double u1, double v1, int rgb, boolean steep,
+		int uMin, int uMax, int vMin, int vMax)
+	{
+		if (u0 > u1) {
+			double u = u0; u0 = u1; u1 = u;
+			double v = v0; v0 = v1; v1 = v;
+		}
+
+		double du = u1 - u0;
+		double gradient = du == 0.0 ? 0.0 : (v1 - v0) / du;
+
+		double start = Math.floor(u0 + 0.5);
+		double end = Math.floor(u1 + 0.5);
+
+		// Only the points where the line is within a pixel of the canvas
+		// along v can touch it.
+		double first = Math.max(start, uMin);
+		double last = Math.min(end, uMax);
+		if (gradient != 0.0) {
+			double a = u0 + (vMin - 1 - v0) / gradient;
+			double b = u0 + (vMax + 1 - v0) / gradient;
+			first = Math.max(first, Math.floor(Math.min(a, b)));
+			last = Math.min(last, Math.ceil(Math.max(a, b)));
+		} else if (v0 < vMin - 1 || v0 > vMax + 1) {
+			return;
+		}
+
+		for (int u = (int)first; u <= last; u++) {
+			// The end points are weighted by how much of their pixel the
+			// line covers along the major axis.
+			double coverage = 1.0;
+			if (u == start) {
+				coverage = start == end ? u1 - u0 : start + 0.5 - u0;
+			} else if (u == end) {
+				coverage = u1 - (end - 0.5);
+			}
+
+			plotPair(u, v0 + gradient * (u - u0), coverage, rgb, steep);
+		}
+	}
+
+	/**
+	 * Splits the coverage of a point at u, v between the two pixels along
+	 * the minor axis that v falls between.
+	 */
+	private void plotPair(int u, double v, double coverage, int rgb, boolean steep)
+	{
+		int base = (int)Math.floor(v);
+		int upper = (int)(256 * coverage * (v - base));
+		int lower = (int)(256 * coverage) - upper;
+		if (steep) {
+			blend(base, u, rgb, lower);
+			blend(base + 1, u, rgb, upper);
+		} else {
+			blend(u, base, rgb, lower);
+			blend(u, base + 1, rgb, upper);
+		}
+	}
+}
@@ -13,7 +13,7 @@ public class PlotTest
 	{
 		Lexer lexer = new Lexer();
 		Parser parser = new Parser();
-		Evaluator evaluator = new Evaluator();
+		DoubleEvaluator evaluator = new DoubleEvaluator();
 		FunctionPlotter plotter = new FunctionPlotter(evaluator);
 		
 		long time = System.currentTimeMillis();
@@ -40,6 +40,7 @@ public class PlotTest
 		plotter.setBoundsX(-0.1, 1.0);
 		plotter.setBoundsY(-0.5, 7.0);
 		plotter.setScale(0.1, 1.0);
+		plotter.setAdaptiveSampling(0.25, 4000);
 		
 		ASTNode expression = parser.parse(lexer.tokenize(testFunction));
 		BufferedImage image = plotter.plot(expression, "x");
@@ -47,7 +48,23 @@ public class PlotTest
 		time = System.currentTimeMillis() - time;
 		
 		System.out.println("in " + time + " ms");
+		System.out.println(plotter.getEvaluationCount() + " evaluations");
 		
 		ImageIO.write(image, "png", new File("test.png"));
+		
+		String testEquation = "y^2 = x^3 - x + 1";
+		plotter.setImageSize(800, 800);
+		plotter.setBoundsX(-3.0, 3.0);
+		plotter.setBoundsY(-3.0, 3.0);
+		plotter.setScale(0.5, 0.5);
+		
+		time = System.currentTimeMillis();
+		image = plotter.plotImplicit(lexer.tokenize(testEquation), parser, "x", "y");
+		time = System.currentTimeMillis() - time;
+		
+		System.out.println("implicit in " + time + " ms");
+		System.out.println(plotter.getEvaluationCount() + " evaluations");
+		
+		ImageIO.write(image, "png", new File("implicit.png"));
 	}
 }
@@ -0,0 +1,171 @@
+package se.c0la.calc;
+
+import java.io.*;
+import java.util.zip.*;
+
+/**
+ * Writes an 8-bit RGB PNG image to a stream a few rows at a time, so that
+ * the whole image never has to be in memory. The header is written when
+ * the encoder is created, the rows are compressed as they arrive, and the
+ * compressed data is written in IDAT chunks of at most CHUNK_SIZE bytes.
+ *
+ * Every row is stored with the Up filter, as the difference from the row
+ * above it, which suits plots well, since most rows are almost the same
+ * as the one before.
+ */
+public class PngEncoder
+{
+	private static final byte[] SIGNATURE = { (byte)137, 80, 78, 71, 13, 10, 26, 10 };
+
+	private static final int CHUNK_SIZE = 1 << 16;
+
+	private static final int COLOR_TYPE_RGB = 2;
+	private static final int FILTER_UP = 2;
+
+	private DataOutputStream out;
+	private int width;
+	private int height;
+	private int rowCount;
+
+	private Deflater deflater;
+	private CRC32 crc;
+
+	private byte[] row;
+	private byte[] previous;
+	private byte[] filtered;
+	private byte[] chunk;
+	private int chunkLength;
+
+	public PngEncoder(OutputStream out, int width, int height)
+	throws IOException
+	{
+		if (width <= 0 || height <= 0) {
+			throw new IllegalArgumentException("Invalid image size " + width + "x" + height);
+		}
+
+		this.out = new DataOutputStream(out);
+		this.width = width;
+		this.height = height;
+		this.rowCount = 0;
+
+		this.deflater = new Deflater();
+		this.crc = new CRC32();
+
+		this.row = new byte[3 * width];
+		this.previous = new byte[3 * width];
+		this.filtered = new byte[3 * width + 1];
+		this.chunk = new byte[CHUNK_SIZE];
+		this.chunkLength = 0;
+
+		this.out.write(SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream data = new DataOutputStream(header);
+		data.writeInt(width);
+		data.writeInt(height);
+		data.writeByte(8);
+		data.writeByte(COLOR_TYPE_RGB);
+		data.writeByte(0);
+		data.writeByte(0);
+		data.writeByte(0);
+		writeChunk("IHDR", header.toByteArray(), header.size());
+	}
+
+	/**
+	 * Adds count rows of pixels, in the format of TYPE_INT_RGB, where the
+	 * first row starts at offset and each row starts scanline entries
+	 * after the one before.
+	 */
+	public void writeRows(int[] pixels, int offset, int scanline, int count)
+	throws IOException
+	{
+		if (rowCount + count > height) {
+			throw new IllegalStateException("The image only has " + height + " rows");
+		}
+
+		for (int y = 0; y < count; y++) {
+			int start = offset + y * scanline;
+			for (int x = 0; x < width; x++) {
+				int rgb = pixels[start + x];
+				row[3 * x] = (byte)(rgb >> 16);
+				row[3 * x + 1] = (byte)(rgb >> 8);
+				row[3 * x + 2] = (byte)rgb;
+			}
+
+			// The row above the first one counts as all zeros.
+			filtered[0] = FILTER_UP;
+			for (int i = 0; i < row.length; i++) {
+				filtered[i + 1] = (byte)(row[i] - previous[i]);
+			}
+
+			deflater.setInput(filtered);
+			while (!deflater.needsInput()) {
+				deflate();
+			}
+
+			byte[] swap = previous;
+			previous = row;
+			row = swap;
+			rowCount++;
+		}
+	}
+
+	/**
+	 * Writes the rest of the compressed data and the end of the image.
+	 * The stream is flushed, but not closed.
+	 */
+	public void finish()
+	throws IOException
+	{
+		if (rowCount != height) {
+			throw new IllegalStateException("Only " + rowCount + " of " + height + " rows were written");
+		}
+
+		try {
+			deflater.finish();
+			while (!deflater.finished()) {
+				deflate();
+			}
+
+			if (chunkLength > 0) {
+				writeChunk("IDAT", chunk, chunkLength);
+				chunkLength = 0;
+			}
+		}
+		finally {
+			deflater.end();
+		}
+
+		writeChunk("IEND", chunk, 0);
+		out.flush();
+	}
+
+	/**
+	 * Compresses into the current chunk, and writes the chunk once it's
+	 * full.
+	 */
+	private void deflate()
+	throws IOException
+	{
+		chunkLength += deflater.deflate(chunk, chunkLength, chunk.length - chunkLength);
+		if (chunkLength == chunk.length) {
+			writeChunk("IDAT", chunk, chunkLength);
+			chunkLength = 0;
+		}
+	}
+
+	private void writeChunk(String type, byte[] data, int length)
+	throws IOException
+	{
+		byte[] name = type.getBytes("US-ASCII");
+
+		crc.reset();
+		crc.update(name);
+		crc.update(data, 0, length);
+
+		out.writeInt(length);
+		out.write(name);
+		out.write(data, 0, length);
+		out.writeInt((int)crc.getValue());
+	}
+}
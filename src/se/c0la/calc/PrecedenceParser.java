@@ -0,0 +1,238 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * Transforms a sequence of lexemes into an abstract syntax tree using
+ * precedence climbing. Each lexeme is looked at once, so parsing is linear
+ * in the length of the input, and no intermediate lists are built.
+ *
+ * The trees are identical to the ones produced by Parser: all binary
+ * operators are left associative, and a unary minus binds tighter than
+ * any binary operator, so -2^2 is (-2)^2.
+ */
+public class PrecedenceParser implements ExpressionParser
+{
+	private ParseListener listener;
+
+	public PrecedenceParser()
+	{
+		this(false);
+	}
+
+	public PrecedenceParser(boolean debug)
+	{
+		setDebug(debug);
+	}
+
+	public void setDebug(boolean debug)
+	{
+		setListener(debug ? new DebugListener(System.out) : null);
+	}
+
+	public void setListener(ParseListener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Keeps track of the position in the lexeme list during a
+	 * single call to parse().
+	 */
+	private static class State
+	{
+		private List<Lexeme> lexemes;
+		private int pos;
+
+		public State(List<Lexeme> lexemes)
+		{
+			this.lexemes = lexemes;
+			this.pos = 0;
+		}
+
+		public Lexeme peek()
+		{
+			if (pos < lexemes.size()) {
+				return lexemes.get(pos);
+			}
+
+			return null;
+		}
+
+		public Lexeme next()
+		{
+			return lexemes.get(pos++);
+		}
+	}
+
+	public ASTNode parse(List<Lexeme> lexemes)
+	throws ParseErrorException
+	{
+		if (listener == null) {
+			return parseLexemes(lexemes);
+		}
+
+		ParseListener listener = this.listener;
+		listener.parsing(lexemes);
+
+		ASTNode node = null;
+		try {
+			node = parseLexemes(lexemes);
+		}
+		finally {
+			listener.parsed(lexemes, node);
+		}
+
+		return node;
+	}
+
+	private ASTNode parseLexemes(List<Lexeme> lexemes)
+	throws ParseErrorException
+	{
+		// Random access is needed to make this linear.
+		if (!(lexemes instanceof RandomAccess)) {
+			lexemes = new ArrayList<Lexeme>(lexemes);
+		}
+
+		State state = new State(lexemes);
+		ASTNode node = parseExpression(state, 1);
+
+		Lexeme trailing = state.peek();
+		if (trailing != null) {
+			if (trailing.getType() == TokenType.CLOSE_PARANTHESIS) {
+				throw new ParseErrorException("Unmatched paranthesis");
+			}
+
+			throw new ParseErrorException("Unexpected " + trailing.getType());
+		}
+
+		return node;
+	}
+
+	/**
+	 * Returns the precedence of a binary operator, or 0 if the
+	 * lexeme isn't one.
+	 */
+	private static int getPrecedence(Lexeme lexeme)
+	{
+		switch (lexeme.getType()) {
+			case PLUS:
+			case MINUS:
+				return 1;
+			case ASTERIX:
+			case SLASH:
+				return 2;
+			case EXPONENT:
+				return 3;
+			default:
+				return 0;
+		}
+	}
+
+	/**
+	 * Parses a sequence of operands separated by binary operators with
+	 * a precedence of at least minPrecedence.
+	 */
+	private ASTNode parseExpression(State state, int minPrecedence)
+	throws ParseErrorException
+	{
+		ASTNode left = parseUnary(state);
+
+		while (true) {
+			Lexeme operator = state.peek();
+			if (operator == null) {
+				break;
+			}
+
+			int precedence = getPrecedence(operator);
+			if (precedence == 0 || precedence < minPrecedence) {
+				break;
+			}
+
+			state.next();
+
+			// Since all operators are left associative, the right hand side
+			// may only contain operators that bind tighter than this one.
+			ASTNode right = parseExpression(state, precedence + 1);
+			left = new ASTNode(operator, left, right);
+		}
+
+		return left;
+	}
+
+	private ASTNode parseUnary(State state)
+	throws ParseErrorException
+	{
+		Lexeme lexeme = state.peek();
+		if (lexeme != null && lexeme.getType() == TokenType.MINUS) {
+			state.next();
+			return new ASTNode(lexeme, parseOperand(state), null);
+		}
+
+		return parseOperand(state);
+	}
+
+	private ASTNode parseOperand(State state)
+	throws ParseErrorException
+	{
+		Lexeme lexeme = state.peek();
+		if (lexeme == null) {
+			throw new ParseErrorException("Operator without argument.");
+		}
+
+		switch (lexeme.getType()) {
+			case NUMBER:
+			case VARIABLE:
+				state.next();
+				return new ASTNode(lexeme);
+			case OPEN_PARANTHESIS:
+				state.next();
+				ASTNode node = parseExpression(state, 1);
+				expectClose(state);
+				return node;
+			case FUNCTION:
+				state.next();
+				return parseArguments(state, lexeme);
+			default:
+				throw new ParseErrorException("Expected number or variable");
+		}
+	}
+
+	/**
+	 * Parses the comma separated arguments of a function call, up to
+	 * and including the closing paranthesis.
+	 */
+	private ASTNode parseArguments(State state, Lexeme function)
+	throws ParseErrorException
+	{
+		ASTNode argument = parseExpression(state, 1);
+
+		Lexeme lexeme = state.peek();
+		if (lexeme == null || lexeme.getType() != TokenType.COMMA) {
+			expectClose(state);
+			return new ASTNode(function, argument, null);
+		}
+
+		List<ASTNode> arguments = new ArrayList<ASTNode>();
+		arguments.add(argument);
+		while (lexeme != null && lexeme.getType() == TokenType.COMMA) {
+			state.next();
+			arguments.add(parseExpression(state, 1));
+			lexeme = state.peek();
+		}
+
+		expectClose(state);
+		return new ASTNode(function, arguments.toArray(new ASTNode[arguments.size()]));
+	}
+
+	private void expectClose(State state)
+	throws ParseErrorException
+	{
+		Lexeme lexeme = state.peek();
+		if (lexeme == null || lexeme.getType() != TokenType.CLOSE_PARANTHESIS) {
+			throw new ParseErrorException("Unmatched paranthesis");
+		}
+
+		state.next();
+	}
+}
@@ -0,0 +1,197 @@
+package se.c0la.calc;
+
+import java.io.*;
+import java.util.*;
+import java.math.*;
+
+/**
+ * Measures where the time goes when expressions are evaluated. Each AST
+ * node, and each function by name, gets a count of how many times it
+ * was evaluated, its total time including its children, and its self
+ * time, which leaves out the time spent in its children. The self time
+ * of a function call is the time spent in the function itself.
+ *
+ * The listener can be shared by frozen evaluators in several threads.
+ * Keep in mind that reading the clock at every node makes evaluation a
+ * lot slower, so the numbers are only good for comparing nodes with each
+ * other.
+ */
+public class ProfilingListener implements EvaluationListener
+{
+	public static class Profile
+	{
+		private final String name;
+		private long count;
+		private long total;
+		private long self;
+
+		public Profile(String name)
+		{
+			this.name = name;
+		}
+
+		private Profile(Profile source)
+		{
+			this.name = source.name;
+			this.count = source.count;
+			this.total = source.total;
+			this.self = source.self;
+		}
+
+		public String getName() { return name; }
+		public long getCount() { return count; }
+		public long getTotalNanos() { return total; }
+		public long getSelfNanos() { return self; }
+
+		public String toString()
+		{
+			return name + ": " + count + " calls, " + total / 1000 + " us total, " + self / 1000 + " us self";
+		}
+	}
+
+	private static final Comparator<Profile> BY_TOTAL = new Comparator<Profile>() {
+		public int compare(Profile a, Profile b)
+		{
+			return a.total < b.total ? 1 : (a.total > b.total ? -1 : 0);
+		}
+	};
+
+	/**
+	 * The nodes that a thread is evaluating at the moment, with the time
+	 * each was entered and how long its children have taken so far.
+	 */
+	private static class Stack
+	{
+		private long[] started = new long[16];
+		private long[] children = new long[16];
+		private int size;
+
+		public void push(long time)
+		{
+			if (size == started.length) {
+				started = Arrays.copyOf(started, size * 2);
+				children = Arrays.copyOf(children, size * 2);
+			}
+
+			started[size] = time;
+			children[size] = 0;
+			size++;
+		}
+	}
+
+	private final ThreadLocal<Stack> stacks = new ThreadLocal<Stack>() {
+		protected Stack initialValue()
+		{
+			return new Stack();
+		}
+	};
+
+	private final Map<ASTNode, Profile> nodes;
+	private final Map<String, Profile> functions;
+
+	public ProfilingListener()
+	{
+		nodes = new HashMap<ASTNode, Profile>();
+		functions = new HashMap<String, Profile>();
+	}
+
+	public void enter(ASTNode node, int depth)
+	{
+		stacks.get().push(System.nanoTime());
+	}
+
+	public void exit(ASTNode node, int depth, BigDecimal value)
+	{
+		long now = System.nanoTime();
+
+		Stack stack = stacks.get();
+		stack.size--;
+		long total = now - stack.started[stack.size];
+		long self = total - stack.children[stack.size];
+		if (stack.size > 0) {
+			stack.children[stack.size - 1] += total;
+		}
+
+		record(node, total, self);
+	}
+
+	private synchronized void record(ASTNode node, long total, long self)
+	{
+		Profile profile = nodes.get(node);
+		if (profile == null) {
+			profile = new Profile(DebugListener.describe(node) + " at " + node.getLexeme().getOffset());
+			nodes.put(node, profile);
+		}
+		add(profile, total, self);
+
+		Lexeme lexeme = node.getLexeme();
+		if (lexeme.getType() == TokenType.FUNCTION) {
+			profile = functions.get(lexeme.getValue());
+			if (profile == null) {
+				profile = new Profile(lexeme.getValue());
+				functions.put(lexeme.getValue(), profile);
+			}
+			add(profile, total, self);
+		}
+	}
+
+	private static void add(Profile profile, long total, long self)
+	{
+		profile.count++;
+		profile.total += total;
+		profile.self += self;
+	}
+
+	/**
+	 * Returns the profile of every node that has been evaluated, with the
+	 * most expensive first.
+	 */
+	public synchronized List<Profile> getNodeProfiles()
+	{
+		return sorted(nodes.values());
+	}
+
+	/**
+	 * Returns the profile of every function that has been called, with
+	 * the most expensive first.
+	 */
+	public synchronized List<Profile> getFunctionProfiles()
+	{
+		return sorted(functions.values());
+	}
+
+	private static List<Profile> sorted(Collection<Profile> profiles)
+	{
+		List<Profile> result = new ArrayList<Profile>();
+		for (Profile profile : profiles) {
+			result.add(new Profile(profile));
+		}
+
+		Collections.sort(result, BY_TOTAL);
+		return result;
+	}
+
+	public synchronized void reset()
+	{
+		nodes.clear();
+		functions.clear();
+	}
+
+	/**
+	 * Prints the most expensive functions and nodes.
+	 */
+	public void print(PrintStream out, int limit)
+	{
+		out.println("functions:");
+		List<Profile> profiles = getFunctionProfiles();
+		for (int i = 0; i < profiles.size() && i < limit; i++) {
+			out.println("  " + profiles.get(i));
+		}
+
+		out.println("nodes:");
+		profiles = getNodeProfiles();
+		for (int i = 0; i < profiles.size() && i < limit; i++) {
+			out.println("  " + profiles.get(i));
+		}
+	}
+}
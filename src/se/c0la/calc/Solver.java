@@ -0,0 +1,302 @@
+package se.c0la.calc;
+
+/**
+ * Finds roots and extremes of expressions in a single variable, using
+ * Newton's method with the derivative computed by a Differentiator.
+ * Close to a simple root every step doubles the number of correct digits,
+ * so a root is usually found with a handful of evaluations of f and f'.
+ *
+ * Newton's method may wander off when the derivative is close to zero
+ * or the guess is poor. A step that ends up further from the root, or
+ * outside the domain of f, is halved until it doesn't. Whenever a step
+ * overshoots the root, the two points bracket it, and from then on every
+ * step that would leave the bracket, or doesn't shrink it fast enough, is
+ * replaced by a bisection. If Newton's method fails before a bracket has
+ * been found, one is searched for by expanding outwards from the guess.
+ *
+ * Evaluation is done with doubles, with the variable bound for each
+ * evaluation rather than set in the DoubleEvaluator, so its variables are
+ * left as they were. A solver keeps count of its evaluations, so it
+ * shouldn't be used by several threads.
+ */
+public class Solver
+{
+	private static final double DEFAULT_TOLERANCE = 1e-12;
+	private static final int DEFAULT_MAX_ITERATIONS = 100;
+
+	/**
+	 * The number of times the search interval is doubled when looking for
+	 * a bracket, which covers any reasonable scale.
+	 */
+	private static final int MAX_EXPANSIONS = 60;
+
+	/**
+	 * The number of times a Newton step that doesn't improve on the last
+	 * point is halved before giving up on Newton's method.
+	 */
+	private static final int MAX_HALVINGS = 20;
+
+	private DoubleEvaluator evaluator;
+	private Differentiator differentiator;
+
+	private double tolerance;
+	private int maxIterations;
+	private int evaluationCount;
+
+	public Solver(DoubleEvaluator evaluator)
+	{
+		this.evaluator = evaluator;
+		this.differentiator = new Differentiator(new ExpressionOptimizer(evaluator));
+		this.tolerance = DEFAULT_TOLERANCE;
+		this.maxIterations = DEFAULT_MAX_ITERATIONS;
+	}
+
+	/**
+	 * A root has been found once a step is smaller than tolerance
+	 * relative to the root, or absolute for roots smaller than one.
+	 */
+	public void setTolerance(double tolerance)
+	{
+		this.tolerance = tolerance;
+	}
+
+	public void setMaxIterations(int maxIterations)
+	{
+		this.maxIterations = maxIterations;
+	}
+
+	/**
+	 * Returns the number of evaluations of functions and derivatives
+	 * done by the last call to one of the find methods.
+	 */
+	public int getEvaluationCount()
+	{
+		return evaluationCount;
+	}
+
+	/**
+	 * Finds a root of f close to guess.
+	 */
+	public double findRoot(ASTNode f, String var, double guess)
+	throws EvaluationException
+	{
+		evaluationCount = 0;
+		return solve(f, differentiator.differentiate(f, var), var, guess);
+	}
+
+	/**
+	 * Finds a root of f between lower and upper, where f must have
+	 * different signs at the two ends.
+	 */
+	public double findRoot(ASTNode f, String var, double lower, double upper)
+	throws EvaluationException
+	{
+		evaluationCount = 0;
+
+		ASTNode df = differentiator.differentiate(f, var);
+		double fLower = evaluate(f, var, lower);
+		double fUpper = evaluate(f, var, upper);
+		return solveBracketed(f, df, var, lower, fLower, upper, fUpper);
+	}
+
+	/**
+	 * Finds a point close to guess where f has a local minimum or
+	 * maximum, or an inflection point with a horizontal tangent, by
+	 * finding a root of f'.
+	 */
+	public double findExtremum(ASTNode f, String var, double guess)
+	throws EvaluationException
+	{
+		evaluationCount = 0;
+
+		ASTNode df = differentiator.differentiate(f, var);
+		return solve(df, differentiator.differentiate(df, var), var, guess);
+	}
+
+	private double solve(ASTNode f, ASTNode df, String var, double guess)
+	throws EvaluationException
+	{
+		double x = guess;
+		double fx = evaluate(f, var, x);
+		for (int i = 0; i < maxIterations && isFinite(fx); i++) {
+			if (fx == 0.0) {
+				return x;
+			}
+
+			double dfx = evaluate(df, var, x);
+			double step = fx / dfx;
+			if (dfx == 0.0 || !isFinite(step)) {
+				break;
+			}
+
+			if (hasConverged(x, x - step)) {
+				return x - step;
+			}
+
+			double next = x - step;
+			double fNext = evaluate(f, var, next);
+			for (int j = 0; j < MAX_HALVINGS && !(Math.abs(fNext) < Math.abs(fx)); j++) {
+				if (changesSign(fx, fNext)) {
+					break;
+				}
+
+				step /= 2;
+				next = x - step;
+				fNext = evaluate(f, var, next);
+			}
+
+			if (changesSign(fx, fNext)) {
+				return solveBracketed(f, df, var, x, fx, next, fNext);
+			}
+
+			// Even a short step makes things worse, so the guess is too far
+			// from the root for Newton's method.
+			if (!(Math.abs(fNext) < Math.abs(fx))) {
+				break;
+			}
+
+			x = next;
+			fx = fNext;
+		}
+
+		double[] bracket = findBracket(f, var, guess);
+		return solveBracketed(f, df, var, bracket[0], bracket[1], bracket[2], bracket[3]);
+	}
+
+	/**
+	 * Looks for a sign change in intervals of doubling size on either side
+	 * of x, and returns the ends of the interval and the values of f at
+	 * them.
+	 */
+	private double[] findBracket(ASTNode f, String var, double x)
+	throws EvaluationException
+	{
+		double step = Math.max(Math.abs(x), 1.0) / 64;
+		double fx = evaluate(f, var, x);
+		double left = x;
+		double fLeft = fx;
+		double right = x;
+		double fRight = fx;
+
+		for (int i = 0; i < MAX_EXPANSIONS; i++) {
+			double nextRight = x + step;
+			double fNextRight = evaluate(f, var, nextRight);
+			if (changesSign(fRight, fNextRight)) {
+				return new double[] { right, fRight, nextRight, fNextRight };
+			}
+
+			double nextLeft = x - step;
+			double fNextLeft = evaluate(f, var, nextLeft);
+			if (changesSign(fNextLeft, fLeft)) {
+				return new double[] { nextLeft, fNextLeft, left, fLeft };
+			}
+
+			// Points where f is undefined are skipped, so that the search
+			// can continue past them.
+			if (isFinite(fNextRight)) {
+				right = nextRight;
+				fRight = fNextRight;
+			}
+			if (isFinite(fNextLeft)) {
+				left = nextLeft;
+				fLeft = fNextLeft;
+			}
+
+			step *= 2;
+		}
+
+		throw new EvaluationException("No root was found near " + x + ".");
+	}
+
+	private static boolean changesSign(double a, double b)
+	{
+		return isFinite(a) && isFinite(b) && (a == 0.0 || b == 0.0 || (a < 0.0) != (b < 0.0));
+	}
+
+	/**
+	 * Newton's method kept within a bracket. A Newton step is only taken
+	 * if it stays inside the bracket and is less than half the step
+	 * before the last one, otherwise the bracket is halved.
+	 */
+	private double solveBracketed(ASTNode f, ASTNode df, String var,
+		double a, double fa, double b, double fb)
+	throws EvaluationException
+	{
+		if (fa == 0.0) {
+			return a;
+		}
+		if (fb == 0.0) {
+			return b;
+		}
+		if (!changesSign(fa, fb)) {
+			throw new EvaluationException("f has the same sign at " + a + " and " + b + ".");
+		}
+
+		// Orient the bracket so that f(low) < 0 < f(high).
+		double low = fa < 0.0 ? a : b;
+		double high = fa < 0.0 ? b : a;
+
+		double x = Math.abs(fa) < Math.abs(fb) ? a : b;
+		double fx = Math.abs(fa) < Math.abs(fb) ? fa : fb;
+		double step = Math.abs(b - a);
+		double lastStep = step;
+
+		for (int i = 0; i < maxIterations; i++) {
+			double dfx = evaluate(df, var, x);
+			double next = x - fx / dfx;
+
+			// A Newton step this small is as close as it gets, even if
+			// rounding puts it on the edge of the bracket.
+			if (isFinite(next) && hasConverged(x, next)) {
+				return next;
+			}
+
+			double previousStep = lastStep;
+			lastStep = step;
+			if (!isFinite(next) || !isBetween(next, low, high)
+				|| Math.abs(2 * fx) > Math.abs(previousStep * dfx)) {
+				next = low + (high - low) / 2;
+			}
+
+			step = Math.abs(next - x);
+			if (hasConverged(low, high)) {
+				return next;
+			}
+
+			x = next;
+			fx = evaluate(f, var, x);
+			if (fx == 0.0) {
+				return x;
+			}
+			if (fx < 0.0) {
+				low = x;
+			} else {
+				high = x;
+			}
+		}
+
+		throw new EvaluationException("No root was found in " + maxIterations + " iterations.");
+	}
+
+	private boolean hasConverged(double x, double next)
+	{
+		return Math.abs(next - x) <= tolerance * Math.max(1.0, Math.abs(next));
+	}
+
+	private static boolean isBetween(double x, double a, double b)
+	{
+		return a < b ? (a < x && x < b) : (b < x && x < a);
+	}
+
+	private static boolean isFinite(double x)
+	{
+		return !Double.isNaN(x) && !Double.isInfinite(x);
+	}
+
+	private double evaluate(ASTNode node, String var, double x)
+	throws EvaluationException
+	{
+		evaluationCount++;
+		return evaluator.evaluate(node, var, x);
+	}
+}
@@ -0,0 +1,147 @@
+package se.c0la.calc;
+
+import java.math.*;
+
+/**
+ * Runs Bytecode with BigDecimals, as a single loop over the instructions
+ * with an array for a stack. Functions and the variables that aren't
+ * parameters are resolved in the evaluator when the machine is created,
+ * just like the ExpressionLinker does, and constants are rounded to its
+ * precision once.
+ *
+ * The stack and the frame are allocated along with the machine and
+ * reused, so a machine should only be used by a single thread at a time.
+ */
+public class StackMachine
+{
+	private final Evaluator evaluator;
+	private final MathContext ctx;
+	private final int[] code;
+	private final BigDecimal[] constants;
+	private final MathFunction[] functions;
+	private final MultiArgumentFunction[] multiFunctions;
+	private final int[] arities;
+	private final int parameterCount;
+	private final BigDecimal[] frame;
+	private final BigDecimal[] stack;
+
+	public StackMachine(Bytecode bytecode, Evaluator evaluator)
+	throws EvaluationException
+	{
+		this.evaluator = evaluator;
+		this.ctx = evaluator.getMathContext();
+		this.code = bytecode.code;
+		this.arities = bytecode.arities;
+		this.parameterCount = bytecode.parameterCount;
+
+		constants = new BigDecimal[bytecode.decimals.length];
+		for (int i = 0; i < constants.length; i++) {
+			constants[i] = bytecode.decimals[i].round(ctx);
+		}
+
+		functions = new MathFunction[arities.length];
+		multiFunctions = new MultiArgumentFunction[arities.length];
+		for (int i = 0; i < arities.length; i++) {
+			String name = bytecode.functions[i];
+			if (arities[i] == 1) {
+				try {
+					functions[i] = evaluator.getFunction(name);
+					continue;
+				}
+				catch (UndefinedFunctionException e) {
+					// Might still be a function with several arguments.
+				}
+			}
+
+			multiFunctions[i] = evaluator.getMultiArgumentFunction(name, arities[i]);
+		}
+
+		frame = new BigDecimal[bytecode.frameSize];
+		for (int i = parameterCount; i < bytecode.names.length; i++) {
+			frame[i] = evaluator.getVariable(bytecode.names[i]);
+		}
+
+		stack = new BigDecimal[bytecode.maxStack];
+	}
+
+	public BigDecimal evaluate(BigDecimal... arguments)
+	throws EvaluationException
+	{
+		if (arguments.length != parameterCount) {
+			throw new EvaluationException("Expected " + parameterCount + " arguments, got "
+				+ arguments.length + ".");
+		}
+
+		System.arraycopy(arguments, 0, frame, 0, parameterCount);
+
+		try {
+			return run();
+		}
+		catch (NumberFormatException e) {
+			throw new EvaluationException("Invalid number specified");
+		}
+		catch (Exception e) {
+			throw new EvaluationException("Evaluation of expression failed");
+		}
+	}
+
+	private BigDecimal run()
+	{
+		final int[] code = this.code;
+		final BigDecimal[] frame = this.frame;
+		final BigDecimal[] stack = this.stack;
+		int sp = 0;
+
+		for (int pc = 0; pc < code.length; pc++) {
+			int instruction = code[pc];
+			int operand = instruction >>> Bytecode.OPCODE_BITS;
+			switch (instruction & Bytecode.OPCODE_MASK) {
+				case Bytecode.CONST:
+					stack[sp++] = constants[operand];
+					break;
+				case Bytecode.LOAD:
+					stack[sp++] = frame[operand];
+					break;
+				case Bytecode.STORE:
+					frame[operand] = stack[sp - 1];
+					break;
+				case Bytecode.ADD:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].add(stack[sp]);
+					break;
+				case Bytecode.SUB:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].subtract(stack[sp]);
+					break;
+				case Bytecode.MUL:
+					sp--;
+					stack[sp - 1] = stack[sp - 1].multiply(stack[sp]);
+					break;
+				case Bytecode.DIV:
+					sp--;
+					stack[sp - 1] = evaluator.divide(stack[sp - 1], stack[sp]);
+					break;
+				case Bytecode.POW:
+					sp--;
+					stack[sp - 1] = evaluator.power(stack[sp - 1], stack[sp]);
+					break;
+				case Bytecode.NEG:
+					stack[sp - 1] = stack[sp - 1].negate();
+					break;
+				case Bytecode.CALL:
+					if (functions[operand] != null) {
+						stack[sp - 1] = functions[operand].apply(stack[sp - 1]);
+						break;
+					}
+
+					BigDecimal[] args = new BigDecimal[arities[operand]];
+					sp -= args.length;
+					System.arraycopy(stack, sp, args, 0, args.length);
+					stack[sp++] = multiFunctions[operand].apply(args, ctx);
+					break;
+			}
+		}
+
+		return stack[0];
+	}
+}
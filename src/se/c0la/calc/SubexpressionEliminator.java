@@ -0,0 +1,173 @@
+package se.c0la.calc;
+
+import java.util.*;
+
+/**
+ * Turns an AST into a DAG in which structurally identical subtrees are
+ * represented by a single node. Every non-trivial node that ends up with
+ * more than one parent is given a slot, which lets the evaluators compute
+ * it once per evaluation and reuse the result for the other parents.
+ *
+ * Since the evaluators store shared values per evaluation, this is only
+ * safe as long as functions are pure. A function with side effects will
+ * only be called once for each distinct argument expression.
+ */
+public class SubexpressionEliminator
+{
+	/**
+	 * Identifies a node by its lexeme and the identity of its children.
+	 * Since children are made unique before their parents, comparing them
+	 * by identity is the same as comparing them structurally. The children
+	 * of a function call are its arguments.
+	 */
+	private static class Key
+	{
+		private TokenType type;
+		private String value;
+		private ASTNode[] children;
+
+		public Key(Lexeme lexeme, ASTNode[] children)
+		{
+			this.type = lexeme.getType();
+			this.value = lexeme.getValue();
+			this.children = children;
+		}
+
+		public boolean equals(Object obj)
+		{
+			if (!(obj instanceof Key)) {
+				return false;
+			}
+
+			Key other = (Key)obj;
+			return type == other.type &&
+				(value == null ? other.value == null : value.equals(other.value)) &&
+				sameChildren(other.children);
+		}
+
+		private boolean sameChildren(ASTNode[] others)
+		{
+			if (children.length != others.length) {
+				return false;
+			}
+
+			for (int i = 0; i < children.length; i++) {
+				if (children[i] != others[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+
+		public int hashCode()
+		{
+			int hash = type.hashCode();
+			hash = 31 * hash + (value == null ? 0 : value.hashCode());
+			for (ASTNode child : children) {
+				hash = 31 * hash + System.identityHashCode(child);
+			}
+			return hash;
+		}
+	}
+
+	public SubexpressionEliminator()
+	{
+	}
+
+	/**
+	 * Returns a new DAG equivalent to the specified tree. The original
+	 * tree is left untouched.
+	 */
+	public ASTNode eliminate(ASTNode node)
+	{
+		Map<Key, ASTNode> unique = new HashMap<Key, ASTNode>();
+		ASTNode root = canonicalize(node, unique);
+
+		// Count the number of edges leading to each node, visiting
+		// every distinct node once.
+		Map<ASTNode, Integer> parents = new IdentityHashMap<ASTNode, Integer>();
+		countParents(root, parents);
+
+		int slotCount = 0;
+		for (Map.Entry<ASTNode, Integer> entry : parents.entrySet()) {
+			ASTNode shared = entry.getKey();
+			if (entry.getValue() > 1 && !isTrivial(shared)) {
+				shared.setSlot(slotCount++);
+			}
+		}
+
+		root.setSlotCount(slotCount);
+		return root;
+	}
+
+	private ASTNode canonicalize(ASTNode node, Map<Key, ASTNode> unique)
+	{
+		if (node.getArguments() != null) {
+			ASTNode[] arguments = new ASTNode[node.getArguments().length];
+			for (int i = 0; i < arguments.length; i++) {
+				arguments[i] = canonicalize(node.getArguments()[i], unique);
+			}
+
+			Key key = new Key(node.getLexeme(), arguments);
+			ASTNode result = unique.get(key);
+			if (result == null) {
+				result = new ASTNode(node.getLexeme(), arguments);
+				unique.put(key, result);
+			}
+
+			return result;
+		}
+
+		ASTNode left = null;
+		if (node.getLeft() != null) {
+			left = canonicalize(node.getLeft(), unique);
+		}
+
+		ASTNode right = null;
+		if (node.getRight() != null) {
+			right = canonicalize(node.getRight(), unique);
+		}
+
+		Key key = new Key(node.getLexeme(), new ASTNode[] { left, right });
+		ASTNode result = unique.get(key);
+		if (result == null) {
+			result = new ASTNode(node.getLexeme(), left, right);
+			unique.put(key, result);
+		}
+
+		return result;
+	}
+
+	private void countParents(ASTNode node, Map<ASTNode, Integer> parents)
+	{
+		ASTNode[] children = node.getArguments();
+		if (children == null) {
+			children = new ASTNode[] { node.getLeft(), node.getRight() };
+		}
+
+		for (ASTNode child : children) {
+			if (child == null) {
+				continue;
+			}
+
+			Integer count = parents.get(child);
+			if (count == null) {
+				parents.put(child, 1);
+				countParents(child, parents);
+			} else {
+				parents.put(child, count + 1);
+			}
+		}
+	}
+
+	/**
+	 * Numbers and variables are as cheap to evaluate as a slot lookup,
+	 * so there's no point in sharing their values.
+	 */
+	private static boolean isTrivial(ASTNode node)
+	{
+		TokenType type = node.getLexeme().getType();
+		return type == TokenType.NUMBER || type == TokenType.VARIABLE;
+	}
+}
@@ -12,5 +12,6 @@ public enum TokenType
 	OPEN_PARANTHESIS,
 	CLOSE_PARANTHESIS,
 	VARIABLE,
-	FUNCTION
+	FUNCTION,
+	COMMA
 }
@@ -0,0 +1,356 @@
+package se.c0la.calc;
+
+import java.util.*;
+import java.math.*;
+
+/**
+ * Keeps variables defined by expressions up to date, the way a
+ * spreadsheet does. Each definition is kept along with the variables it
+ * refers to, and when a variable is redefined, only the definitions that
+ * depend on it, directly or through other definitions, are evaluated
+ * again. They're evaluated in topological order, so each one is
+ * evaluated once, after everything it depends on.
+ *
+ * Values are stored in the evaluator, so they can be used by any
+ * expression. Variables that are referred to but not defined in the store,
+ * such as pi, are read from the evaluator as usual. A definition that
+ * would make a variable depend on itself is rejected with a
+ * CyclicDependencyException.
+ *
+ * A definition may shadow a variable that the evaluator already had, such
+ * as pi, whose value is kept and put back when the definition is removed.
+ * If a definition can't be evaluated, the shadowed value is put back as
+ * well, or if there was none, the variable is removed from the evaluator,
+ * so the definitions that depend on it fail too until the error is fixed.
+ */
+public class VariableStore
+{
+	private static class Definition
+	{
+		private String name;
+		private ASTNode expression;
+		private Set<String> dependencies;
+		private BigDecimal value;
+		private EvaluationException error;
+
+		/**
+		 * The value the evaluator had for the variable before it was
+		 * defined in the store, or null if it had none.
+		 */
+		private BigDecimal shadowed;
+	}
+
+	private Evaluator evaluator;
+	private Map<String, Definition> definitions;
+
+	/**
+	 * Maps each variable to the definitions that refer to it.
+	 */
+	private Map<String, Set<String>> dependents;
+
+	private int recomputedCount;
+
+	public VariableStore(Evaluator evaluator)
+	{
+		this.evaluator = evaluator;
+		this.definitions = new HashMap<String, Definition>();
+		this.dependents = new HashMap<String, Set<String>>();
+	}
+
+	/**
+	 * Defines name by expression, and updates every definition that
+	 * depends on it. Returns the new value, or throws the exception that
+	 * evaluating expression failed with. The definition is kept even if
+	 * it fails, since it may succeed once the variables it refers to have
+	 * been defined.
+	 */
+	public BigDecimal define(String name, ASTNode expression)
+	throws EvaluationException
+	{
+		Set<String> dependencies = new HashSet<String>();
+		collectVariables(expression, dependencies);
+		checkCycles(name, dependencies);
+
+		Definition definition = definitions.get(name);
+		if (definition == null) {
+			definition = new Definition();
+			definition.name = name;
+			try {
+				definition.shadowed = evaluator.getVariable(name);
+			}
+			catch (UndefinedVariableException e) {
+				// Nothing to put back later.
+			}
+			definitions.put(name, definition);
+		}
+		else {
+			for (String dependency : definition.dependencies) {
+				dependents.get(dependency).remove(name);
+			}
+		}
+
+		definition.expression = expression;
+		definition.dependencies = dependencies;
+		for (String dependency : dependencies) {
+			Set<String> users = dependents.get(dependency);
+			if (users == null) {
+				users = new HashSet<String>();
+				dependents.put(dependency, users);
+			}
+			users.add(name);
+		}
+
+		recompute(Collections.singleton(name));
+		return get(name);
+	}
+
+	/**
+	 * Defines name as a constant.
+	 */
+	public BigDecimal set(String name, BigDecimal value)
+	throws EvaluationException
+	{
+		return define(name, new ASTNode(new Lexeme(TokenType.NUMBER, value.toString())));
+	}
+
+	/**
+	 * Removes the definition of name. The evaluator gets back the value it
+	 * had for name before it was defined, if any, and otherwise loses it.
+	 * Definitions that depend on it are updated, and fail unless the
+	 * evaluator had a value of its own for name.
+	 */
+	public void remove(String name)
+	{
+		Definition definition = definitions.remove(name);
+		if (definition == null) {
+			return;
+		}
+
+		for (String dependency : definition.dependencies) {
+			dependents.get(dependency).remove(name);
+		}
+
+		restore(definition);
+		recompute(getDependents(name));
+	}
+
+	/**
+	 * Returns the current value of a variable that is defined in the
+	 * store, or throws the exception its definition failed with.
+	 */
+	public BigDecimal get(String name)
+	throws EvaluationException
+	{
+		Definition definition = definitions.get(name);
+		if (definition == null) {
+			throw new UndefinedVariableException("Variable " + name + " is undefined.");
+		}
+
+		if (definition.error != null) {
+			throw definition.error;
+		}
+
+		return definition.value;
+	}
+
+	public boolean isDefined(String name)
+	{
+		return definitions.containsKey(name);
+	}
+
+	/**
+	 * Returns the number of definitions that were evaluated by the last
+	 * change to the store.
+	 */
+	public int getRecomputedCount()
+	{
+		return recomputedCount;
+	}
+
+	/**
+	 * Evaluates every definition again, which is needed when something
+	 * other than the variables changes, such as the precision of the
+	 * evaluator.
+	 */
+	public void recomputeAll()
+	{
+		recompute(definitions.keySet());
+	}
+
+	private static void collectVariables(ASTNode node, Set<String> variables)
+	{
+		if (node == null) {
+			return;
+		}
+
+		Lexeme lexeme = node.getLexeme();
+		if (lexeme.getType() == TokenType.VARIABLE) {
+			variables.add(lexeme.getValue());
+			return;
+		}
+
+		if (node.getArguments() != null) {
+			for (ASTNode argument : node.getArguments()) {
+				collectVariables(argument, variables);
+			}
+			return;
+		}
+
+		collectVariables(node.getLeft(), variables);
+		collectVariables(node.getRight(), variables);
+	}
+
+	/**
+	 * Throws if name can be reached from any of the dependencies by
+	 * following the definitions. The search is breadth first, so the
+	 * cycle that is reported is the shortest one.
+	 */
+	private void checkCycles(String name, Set<String> dependencies)
+	throws CyclicDependencyException
+	{
+		// Maps each variable that has been reached to the one it was
+		// reached from, which is null for the dependencies themselves.
+		Map<String, String> reachedFrom = new HashMap<String, String>();
+		Deque<String> pending = new ArrayDeque<String>();
+		for (String dependency : dependencies) {
+			reachedFrom.put(dependency, null);
+			pending.add(dependency);
+		}
+
+		while (!pending.isEmpty()) {
+			String current = pending.poll();
+			if (current.equals(name)) {
+				LinkedList<String> path = new LinkedList<String>();
+				for (String step = current; step != null; step = reachedFrom.get(step)) {
+					path.addFirst(step);
+				}
+
+				StringBuilder cycle = new StringBuilder(name);
+				for (String step : path) {
+					cycle.append(" -> ").append(step);
+				}
+
+				throw new CyclicDependencyException("Variable " + name + " would depend on itself: " + cycle);
+			}
+
+			Definition definition = definitions.get(current);
+			if (definition == null) {
+				continue;
+			}
+
+			for (String dependency : definition.dependencies) {
+				if (!reachedFrom.containsKey(dependency)) {
+					reachedFrom.put(dependency, current);
+					pending.add(dependency);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Returns the definitions that depend on name, directly or through
+	 * other definitions, not including name itself.
+	 */
+	private Set<String> getDependents(String name)
+	{
+		Set<String> result = new HashSet<String>();
+		Deque<String> pending = new ArrayDeque<String>();
+		pending.push(name);
+		while (!pending.isEmpty()) {
+			Set<String> users = dependents.get(pending.pop());
+			if (users == null) {
+				continue;
+			}
+
+			for (String user : users) {
+				if (result.add(user)) {
+					pending.push(user);
+				}
+			}
+		}
+
+		result.remove(name);
+		return result;
+	}
+
+	/**
+	 * Evaluates the changed definitions and everything that depends on
+	 * them. The order is found with Kahn's algorithm, counting only the
+	 * dependencies that are themselves among the definitions to update.
+	 */
+	private void recompute(Collection<String> changed)
+	{
+		Set<String> affected = new HashSet<String>();
+		for (String name : changed) {
+			if (definitions.containsKey(name)) {
+				affected.add(name);
+			}
+			affected.addAll(getDependents(name));
+		}
+
+		Map<String, Integer> waiting = new HashMap<String, Integer>();
+		Deque<String> ready = new ArrayDeque<String>();
+		for (String name : affected) {
+			int count = 0;
+			for (String dependency : definitions.get(name).dependencies) {
+				if (affected.contains(dependency)) {
+					count++;
+				}
+			}
+
+			waiting.put(name, count);
+			if (count == 0) {
+				ready.add(name);
+			}
+		}
+
+		recomputedCount = 0;
+		while (!ready.isEmpty()) {
+			String name = ready.poll();
+			evaluate(definitions.get(name));
+			recomputedCount++;
+
+			Set<String> users = dependents.get(name);
+			if (users == null) {
+				continue;
+			}
+
+			for (String user : users) {
+				Integer count = waiting.get(user);
+				if (count != null) {
+					waiting.put(user, count - 1);
+					if (count == 1) {
+						ready.add(user);
+					}
+				}
+			}
+		}
+	}
+
+	private void evaluate(Definition definition)
+	{
+		try {
+			definition.value = evaluator.evaluate(definition.expression);
+			definition.error = null;
+			evaluator.addVariable(definition.name, definition.value);
+		}
+		catch (EvaluationException e) {
+			definition.value = null;
+			definition.error = e;
+			restore(definition);
+		}
+	}
+
+	/**
+	 * Puts back the value the evaluator had before the definition
+	 * shadowed it.
+	 */
+	private void restore(Definition definition)
+	{
+		if (definition.shadowed != null) {
+			evaluator.addVariable(definition.name, definition.shadowed);
+		} else {
+			evaluator.removeVariable(definition.name);
+		}
+	}
+}